@@ -0,0 +1,323 @@
+package dx.android.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+import dx.android.util.system.FileLock;
+import dx.android.util.system.Files;
+import dx.android.util.system.ZipIndex;
+
+/*
+ * Class name -> plugin index, built from classes*.dex of plugin apks.
+ *   Only 64 bits hash of class names are kept, both on disk and in memory,
+ *   a wrong route caused by hash collision just fall back to normal lookup.
+ */
+class ClassIndex {
+
+    private static final String TAG = "ClassIndex";
+
+    private static final int MAGIC = 0x434c4958; // CLIX
+    private static final int VERSION = 1;
+
+    private static final Pattern sDexName = Pattern.compile("classes\\d*\\.dex");
+
+    private File mFile;
+    private Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private Map<String, Entry> mUsed = new HashMap<String, Entry>();
+    private boolean mDirty;
+
+    // sorted class hashes, and owner package of each
+    private volatile long[] mHashes = new long[0];
+    private volatile String[] mOwners = new String[0];
+
+    private static class Entry {
+        String mPath;
+        long mSize;
+        long mTime;
+        long[] mHashes; // sorted
+    }
+
+    private ClassIndex(File file) {
+        mFile = file;
+    }
+
+    static ClassIndex load(File file) {
+        ClassIndex index = new ClassIndex(file);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                index.mDirty = true;
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                Entry e = new Entry();
+                e.mPath = in.readUTF();
+                e.mSize = in.readLong();
+                e.mTime = in.readLong();
+                e.mHashes = new long[in.readInt()];
+                for (int j = 0; j < e.mHashes.length; ++j)
+                    e.mHashes[j] = in.readLong();
+                index.mEntries.put(e.mPath, e);
+            }
+        } catch (FileNotFoundException e) {
+            index.mDirty = true;
+        } catch (Exception e) {
+            Log.w(TAG, "load", e);
+            index.mEntries.clear();
+            index.mDirty = true;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+            }
+        }
+        return index;
+    }
+
+    /*
+     * Called after import, parse dex only if apk changed
+     */
+    boolean update(Plugin plugin) {
+        String path = plugin.mApkPath.getAbsolutePath();
+        long size = plugin.mApkPath.length();
+        synchronized (this) {
+            Entry e = mEntries.get(path);
+            if (e != null && e.mTime == plugin.mApkTime && e.mSize == size) {
+                mUsed.put(path, e);
+                return true;
+            }
+        }
+        Log.d(TAG, "update: " + plugin.mPackageName);
+        long[] hashes;
+        try {
+            hashes = readClasses(plugin.mApkPath, plugin.mApkTime);
+        } catch (Exception e) {
+            Log.w(TAG, "update", e);
+            return false;
+        }
+        Entry e = new Entry();
+        e.mPath = path;
+        e.mSize = size;
+        e.mTime = plugin.mApkTime;
+        e.mHashes = hashes;
+        synchronized (this) {
+            mUsed.put(path, e);
+            mDirty = true;
+        }
+        return true;
+    }
+
+    /*
+     * Build lookup table of plugins, report duplicate classes
+     */
+    synchronized void build(Collection<Plugin> plugins) {
+        long[] hashes = new long[0];
+        String[] owners = new String[0];
+        for (Plugin p : plugins) {
+            if (p.mApkPath == null || p.mClassLoader != null)
+                continue;
+            Entry e = mUsed.get(p.mApkPath.getAbsolutePath());
+            if (e == null)
+                continue;
+            long[] hashes2 = new long[hashes.length + e.mHashes.length];
+            String[] owners2 = new String[hashes2.length];
+            Map<String, Integer> dups = new HashMap<String, Integer>();
+            int i = 0, j = 0, k = 0;
+            while (i < hashes.length || j < e.mHashes.length) {
+                if (j == e.mHashes.length
+                        || (i < hashes.length && hashes[i] <= e.mHashes[j])) {
+                    if (j < e.mHashes.length && hashes[i] == e.mHashes[j]) {
+                        Integer n = dups.get(owners[i]);
+                        dups.put(owners[i], n == null ? 1 : n + 1);
+                        ++j; // first one owns it
+                    }
+                    hashes2[k] = hashes[i];
+                    owners2[k++] = owners[i++];
+                } else {
+                    hashes2[k] = e.mHashes[j++];
+                    owners2[k++] = p.mPackageName;
+                }
+            }
+            for (Map.Entry<String, Integer> d : dups.entrySet()) {
+                Log.w(TAG, "build: " + d.getValue() + " duplicate classes in "
+                        + p.mPackageName + " and " + d.getKey());
+            }
+            hashes = Arrays.copyOf(hashes2, k);
+            owners = Arrays.copyOf(owners2, k);
+        }
+        Log.d(TAG, "build: " + hashes.length + " classes");
+        mOwners = owners;
+        mHashes = hashes;
+    }
+
+    /*
+     * Return package name of plugin which defines className, or null if unknown
+     */
+    String findOwner(String className) {
+        long[] hashes = mHashes;
+        String[] owners = mOwners;
+        if (hashes.length == 0 || owners.length != hashes.length)
+            return null;
+        int i = Arrays.binarySearch(hashes, hash(className));
+        return i < 0 ? null : owners[i];
+    }
+
+    synchronized void save() {
+        save(false);
+    }
+
+    /*
+     * keepUnused: also keep entries not used in this run, for partial import
+     */
+    synchronized void save(boolean keepUnused) {
+        if (!mDirty && (keepUnused || mUsed.size() == mEntries.size()))
+            return;
+        final Map<String, Entry> entries = keepUnused
+                ? new HashMap<String, Entry>(mEntries) : new HashMap<String, Entry>();
+        entries.putAll(mUsed);
+        Log.d(TAG, "save: " + entries.size() + " entries");
+        FileLock lock = FileLock.lock(new File(mFile.getParentFile(), Plugin.FILE_LOCK));
+        try {
+            Files.atomicWrite(mFile, new Files.Content() {
+                @Override
+                public void writeTo(FileOutputStream fos) throws IOException {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(entries.size());
+                    for (Entry e : entries.values()) {
+                        out.writeUTF(e.mPath);
+                        out.writeLong(e.mSize);
+                        out.writeLong(e.mTime);
+                        out.writeInt(e.mHashes.length);
+                        for (long h : e.mHashes)
+                            out.writeLong(h);
+                    }
+                    out.flush();
+                }
+            });
+            mEntries = entries;
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "save", e);
+        } finally {
+            if (lock != null)
+                lock.release();
+        }
+    }
+
+    // FNV-1a 64
+    static long hash(CharSequence name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); ++i) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long[] readClasses(File apk, long time) throws IOException {
+        List<String> classes = new ArrayList<String>();
+        ZipIndex zip = ZipIndex.open(apk, time);
+        for (ZipIndex.Entry entry : zip.list("classes")) {
+            if (!sDexName.matcher(entry.mName).matches())
+                continue;
+            InputStream in = zip.open(entry);
+            try {
+                readDex(readFully(in, (int) entry.mSize), classes);
+            } finally {
+                in.close();
+            }
+        }
+        long[] hashes = new long[classes.size()];
+        for (int i = 0; i < hashes.length; ++i)
+            hashes[i] = hash(classes.get(i));
+        Arrays.sort(hashes);
+        return hashes;
+    }
+
+    static byte[] readFully(InputStream in, int size) throws IOException {
+        byte[] data = new byte[size];
+        int n = 0;
+        while (n < size) {
+            int r = in.read(data, n, size - n);
+            if (r < 0)
+                throw new IOException("unexpected end of stream");
+            n += r;
+        }
+        return data;
+    }
+
+    /*
+     * Read names of defined classes: class_defs -> type_ids -> string_ids -> string_data
+     */
+    static void readDex(byte[] dex, List<String> classes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+        if (dex.length < 0x70 || dex[0] != 'd' || dex[1] != 'e' || dex[2] != 'x')
+            throw new IOException("bad dex magic");
+        int stringIdsOff = buf.getInt(0x3c);
+        int typeIdsOff = buf.getInt(0x44);
+        int classDefsSize = buf.getInt(0x60);
+        int classDefsOff = buf.getInt(0x64);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < classDefsSize; ++i) {
+            int typeIdx = buf.getInt(classDefsOff + i * 32);
+            int stringIdx = buf.getInt(typeIdsOff + typeIdx * 4);
+            int off = buf.getInt(stringIdsOff + stringIdx * 4);
+            // skip uleb128 utf16 size
+            while ((dex[off++] & 0x80) != 0) {
+            }
+            sb.setLength(0);
+            readDescriptor(dex, off, sb);
+            classes.add(sb.toString());
+        }
+    }
+
+    // MUTF-8 "Lcom/foo/Bar;" -> "com.foo.Bar"
+    private static void readDescriptor(byte[] dex, int off, StringBuilder sb) {
+        if (dex[off] == 'L')
+            ++off;
+        while (true) {
+            int b = dex[off++] & 0xff;
+            char c;
+            if (b == 0) {
+                break;
+            } else if (b < 0x80) {
+                c = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                c = (char) (((b & 0x1f) << 6) | (dex[off++] & 0x3f));
+            } else {
+                c = (char) (((b & 0x0f) << 12) | ((dex[off++] & 0x3f) << 6)
+                        | (dex[off++] & 0x3f));
+            }
+            if (c == '/')
+                c = '.';
+            else if (c == ';')
+                break;
+            sb.append(c);
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+package dx.android.plugin;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import dx.android.util.system.ZipIndex;
+
+/*
+ * Java reader of idmap files (Lollipop format, version 1), memory mapped.
+ *   Layout:
+ *     u32 magic, u32 version, u32 target crc, u32 overlay crc,
+ *     char target path[256], char overlay path[256],
+ *     u16 target package id, u16 type count,
+ *     types: u16 target type, u16 overlay type, u16 entry count, u16 entry offset,
+ *            u32 entries[entry count], 0xffffffff for not overlaid
+ *   Crc are of resources.arsc in apks, checked when open to detect stale file.
+ *   Overlay ids are built with package id 0x7f, overlays of other package id
+ *   are rejected when checked with apks, native lookup is used for them.
+ */
+class Idmap {
+
+    private static final String TAG = "Idmap";
+
+    private static final int MAGIC = 0x504D4449; // IDMP
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 4 + 256 * 2;
+
+    // overlay apks are built as normal application packages
+    private static final int OVERLAY_PACKAGE_ID = 0x7f;
+
+    // ResTable chunk types in resources.arsc
+    private static final int RES_TABLE_TYPE = 0x0002;
+    private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+
+    // opened idmaps, shared by overlay resources of restarted plugins,
+    //   removed when released by all targets
+    private static final Map<String, Idmap> sCache = new HashMap<String, Idmap>();
+
+    private final String mPath;
+    // targets using this, guarded by sCache
+    private int mRefs;
+    private final long mTime;
+    private final long mLength;
+    private final ByteBuffer mBuffer;
+    private final int mPackageId;
+    // indexed by target type id, offset of type header in buffer, 0 if no map
+    private final int[] mTypes = new int[256];
+
+    private Idmap(File idmap, ByteBuffer buffer) throws IOException {
+        mPath = idmap.getPath();
+        mTime = idmap.lastModified();
+        mLength = buffer.limit();
+        mBuffer = buffer;
+        mPackageId = buffer.getShort(HEADER_SIZE) & 0xffff;
+        int count = buffer.getShort(HEADER_SIZE + 2) & 0xffff;
+        int off = HEADER_SIZE + 4;
+        for (int i = 0; i < count; ++i) {
+            if (off + 8 > buffer.limit())
+                throw new IOException("truncated idmap");
+            int type = buffer.getShort(off) & 0xffff;
+            int entries = buffer.getShort(off + 4) & 0xffff;
+            if (type == 0 || type > 0xff || off + 8 + entries * 4 > buffer.limit())
+                throw new IOException("bad idmap type " + type);
+            mTypes[type] = off;
+            off += 8 + entries * 4;
+        }
+    }
+
+    /*
+     * Open idmap created from target and overlay apk,
+     *   return null if not exists, out of date with apks,
+     *   or overlay package id is not 0x7f. Release when not used.
+     */
+    static Idmap open(File target, File overlay, File idmap) {
+        return load(idmap, target, overlay);
+    }
+
+    /*
+     * Open idmap known to be up to date (checked with apks before),
+     *   skip checking apks. Release when not used.
+     */
+    static Idmap open(File idmap) {
+        synchronized (sCache) {
+            Idmap map = sCache.get(idmap.getPath());
+            if (map != null && map.mTime == idmap.lastModified()
+                    && map.mLength == idmap.length()) {
+                ++map.mRefs;
+                return map;
+            }
+        }
+        return load(idmap, null, null);
+    }
+
+    /*
+     * Target not use this any more, mapping is dropped from cache
+     *   when released by all, and unmapped when collected.
+     */
+    void release() {
+        synchronized (sCache) {
+            if (--mRefs == 0 && sCache.get(mPath) == this)
+                sCache.remove(mPath);
+        }
+    }
+
+    private static Idmap load(File idmap, File target, File overlay) {
+        if (!idmap.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(idmap, "r");
+            if (raf.length() < HEADER_SIZE + 4)
+                return null;
+            ByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                Log.d(TAG, "open: bad magic or version " + idmap);
+                return null;
+            }
+            if (target != null && ((buffer.getInt(8) & 0xffffffffL) != resourcesCrc(target)
+                    || (buffer.getInt(12) & 0xffffffffL) != resourcesCrc(overlay))) {
+                Log.d(TAG, "open: out of date " + idmap);
+                return null;
+            }
+            if (overlay != null && packageId(overlay) != OVERLAY_PACKAGE_ID) {
+                Log.w(TAG, "open: overlay package id is not 0x7f " + overlay);
+                return null;
+            }
+            Idmap map = new Idmap(idmap, buffer);
+            synchronized (sCache) {
+                map.mRefs = 1;
+                sCache.put(idmap.getPath(), map);
+            }
+            return map;
+        } catch (IOException e) {
+            Log.w(TAG, "open " + idmap, e);
+            return null;
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /*
+     * Return overlay id of target id, or 0 if not overlaid
+     */
+    int map(int id) {
+        if ((id >>> 24) != mPackageId)
+            return 0;
+        int off = mTypes[(id >> 16) & 0xff];
+        if (off == 0)
+            return 0;
+        ByteBuffer buffer = mBuffer;
+        int entry = (id & 0xffff) - (buffer.getShort(off + 6) & 0xffff);
+        if (entry < 0 || entry >= (buffer.getShort(off + 4) & 0xffff))
+            return 0;
+        int mapped = buffer.getInt(off + 8 + entry * 4);
+        if (mapped == -1)
+            return 0;
+        return (OVERLAY_PACKAGE_ID << 24)
+                | ((buffer.getShort(off + 2) & 0xff) << 16) | (mapped & 0xffff);
+    }
+
+    /*
+     * All target ids of overlaid types, overlaid or not, for measure lookups
+     */
+    int[] targetIds() {
+        int count = 0;
+        for (int off : mTypes) {
+            if (off != 0)
+                count += mBuffer.getShort(off + 4) & 0xffff;
+        }
+        int[] ids = new int[count];
+        int n = 0;
+        for (int type = 0; type < mTypes.length; ++type) {
+            int off = mTypes[type];
+            if (off == 0)
+                continue;
+            int first = mBuffer.getShort(off + 6) & 0xffff;
+            int entries = mBuffer.getShort(off + 4) & 0xffff;
+            for (int i = 0; i < entries; ++i)
+                ids[n++] = (mPackageId << 24) | (type << 16) | (first + i);
+        }
+        return ids;
+    }
+
+    // id of first package in resources.arsc of apk
+    private static int packageId(File apk) throws IOException {
+        ZipIndex zip = ZipIndex.open(apk, apk.lastModified());
+        ZipIndex.Entry entry = zip.find("resources.arsc");
+        if (entry == null)
+            return -1;
+        DataInputStream in = new DataInputStream(zip.open(entry));
+        try {
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            // table header, then global string pool, then package
+            in.readFully(header.array(), 0, 12);
+            if ((header.getShort(0) & 0xffff) != RES_TABLE_TYPE)
+                return -1;
+            skipFully(in, (header.getShort(2) & 0xffff) - 12);
+            in.readFully(header.array(), 0, 8);
+            skipFully(in, header.getInt(4) - 8);
+            in.readFully(header.array(), 0, 12);
+            if ((header.getShort(0) & 0xffff) != RES_TABLE_PACKAGE_TYPE)
+                return -1;
+            return header.getInt(8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        if (n < 0)
+            throw new IOException("bad chunk size");
+        while (n > 0) {
+            long k = in.skip(n);
+            if (k <= 0) {
+                if (in.read() < 0)
+                    throw new EOFException();
+                k = 1;
+            }
+            n -= k;
+        }
+    }
+
+    private static long resourcesCrc(File apk) throws IOException {
+        ZipIndex.Entry entry = ZipIndex.open(apk, apk.lastModified()).find("resources.arsc");
+        return entry == null ? -1 : entry.mCrc;
+    }
+
+}
@@ -0,0 +1,103 @@
+package dx.android.plugin;
+
+import java.io.File;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Timing of overlay id lookups, java idmap reader against native library,
+ *   to decide OverlayResources.sJavaIdmap on a device. Run from debug code
+ *   or instrumentation after target plugin is started, results are logged.
+ */
+public class IdmapBenchmark {
+
+    private static final String TAG = "IdmapBenchmark";
+
+    public static final int JAVA_NANOS = 0;      // per lookup
+    public static final int NATIVE_NANOS = 1;    // per lookup
+    public static final int LOOKUPS = 2;         // ids looked up in each round
+    public static final int MISMATCHES = 3;      // ids mapped differently
+
+    /*
+     * Look up all ids of overlaid types of target, rounds times with each.
+     *   context: plugin context of target
+     *   Return null if target or overlay not found, or idmap not opened by both.
+     */
+    public static long[] run(Context context, String overlay, int rounds) {
+        if (!(context instanceof PluginContext))
+            return null;
+        Plugin target = ((PluginContext) context).getPlugin();
+        Plugin o = null;
+        for (Plugin p : target.mOverlays) {
+            if (p.mPackageName.equals(overlay))
+                o = p;
+        }
+        if (o == null)
+            return null;
+        File idmap = new File(new File(new File(PluginManager.getInstance().getCacheDir(), 
+                target.mPackageName), Plugin.SUB_DIR_IDMAPS), 
+                overlay + TargetResources.SUFFIX_IDMAP);
+        Idmap java = Idmap.open(target.mApkPath, o.mApkPath, idmap);
+        if (java == null)
+            return null;
+        try {
+            long map = OverlayResources.nativeOpen(target.mApkPath, target.mPackageName, 
+                    o.mApkPath, idmap);
+            if (map == 0)
+                return null;
+            try {
+                return run(java, map, rounds);
+            } finally {
+                OverlayResources.close(map);
+            }
+        } finally {
+            java.release();
+        }
+    }
+
+    private static long[] run(Idmap java, long map, int rounds) {
+        int[] ids = java.targetIds();
+        long[] result = new long[4];
+        result[LOOKUPS] = ids.length;
+        for (int id : ids) {
+            if (java.map(id) != OverlayResources.map(map, id))
+                ++result[MISMATCHES];
+        }
+        if (ids.length == 0 || rounds <= 0)
+            return result;
+        // warm up both, sum is kept so lookups are not dropped
+        int sum = lookupJava(java, ids, 1) + lookupNative(map, ids, 1);
+        long start = System.nanoTime();
+        sum += lookupJava(java, ids, rounds);
+        long javaEnd = System.nanoTime();
+        sum += lookupNative(map, ids, rounds);
+        long nativeEnd = System.nanoTime();
+        long lookups = (long) ids.length * rounds;
+        result[JAVA_NANOS] = (javaEnd - start) / lookups;
+        result[NATIVE_NANOS] = (nativeEnd - javaEnd) / lookups;
+        Log.d(TAG, "run: " + ids.length + " ids x " + rounds + ", java " 
+                + result[JAVA_NANOS] + "ns, native " + result[NATIVE_NANOS] 
+                + "ns, mismatches " + result[MISMATCHES] + " (" + sum + ")");
+        return result;
+    }
+
+    private static int lookupJava(Idmap java, int[] ids, int rounds) {
+        int sum = 0;
+        for (int r = 0; r < rounds; ++r) {
+            for (int id : ids)
+                sum += java.map(id);
+        }
+        return sum;
+    }
+
+    private static int lookupNative(long map, int[] ids, int rounds) {
+        int sum = 0;
+        for (int r = 0; r < rounds; ++r) {
+            for (int id : ids)
+                sum += OverlayResources.map(map, id);
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,59 @@
+package dx.android.plugin;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.LayoutInflater;
+
+/*
+ * Inflation throughput of a layout through overlay layout factory, without
+ *   and with overlays selected. Run on main thread from debug code or
+ *   instrumentation, while no overlay switch is pending, results are logged.
+ *   Selection is restored after, tracked views are restyled to it again.
+ */
+public class InflateBenchmark {
+
+    private static final String TAG = "InflateBenchmark";
+
+    public static final int PLAIN_NANOS = 0;     // per inflate, no overlay selected
+    public static final int OVERLAY_NANOS = 1;   // per inflate, overlays selected
+
+    /*
+     * context: plugin context of target, with overlay factory applied
+     * layout: layout of target
+     * Return null if context has no overlays.
+     */
+    public static long[] run(Context context, int layout, int rounds, String... overlays) {
+        if (!(context instanceof PluginContext))
+            return null;
+        if (!(context.getResources() instanceof TargetResources))
+            return null;
+        TargetResources resources = (TargetResources) context.getResources();
+        LayoutInflater inflater = LayoutInflater.from(context);
+        TargetResources.Selection old = resources.getSelection();
+        long[] result = new long[2];
+        try {
+            resources.setSelection(resources.makeSelection());
+            result[PLAIN_NANOS] = inflate(inflater, layout, rounds);
+            resources.setSelection(resources.makeSelection(overlays));
+            result[OVERLAY_NANOS] = inflate(inflater, layout, rounds);
+        } finally {
+            resources.setSelection(old);
+        }
+        Log.d(TAG, "run: layout 0x" + Integer.toHexString(layout) + " x " + rounds 
+                + ", plain " + result[PLAIN_NANOS] / 1000 + "us, overlays " 
+                + result[OVERLAY_NANOS] / 1000 + "us");
+        return result;
+    }
+
+    // nanos per inflate, after one to warm up caches
+    private static long inflate(LayoutInflater inflater, int layout, int rounds) {
+        inflater.inflate(layout, null);
+        if (rounds <= 0)
+            return 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            inflater.inflate(layout, null);
+        return (System.nanoTime() - start) / rounds;
+    }
+
+}
@@ -0,0 +1,219 @@
+package dx.android.plugin;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.TypedValue;
+
+/*
+ * Drawables (as constant state) and values loaded from overlay resources,
+ *   keyed by overlay, mapped id and density, bounded by size in KB.
+ *   Only overlay resources are cached here, base resources have their own cache.
+ *   Drawables loaded with theme are not cached, they may depend on theme.
+ */
+class OverlayCache {
+
+    private static final String TAG = "OverlayCache";
+
+    private static final int KIND_DRAWABLE = 0;
+    private static final int KIND_TEXT = 1;
+    private static final int KIND_TEXT_ARRAY = 2;
+    private static final int KIND_STRING_ARRAY = 3;
+    private static final int KIND_INT_ARRAY = 4;
+
+    private static class Key {
+        final OverlayResources mResources;
+        final int mId;
+        final int mDensity;
+        final int mKind;
+        Key(OverlayResources resources, int id, int density, int kind) {
+            mResources = resources;
+            mId = id;
+            mDensity = density;
+            mKind = kind;
+        }
+        @Override
+        public int hashCode() {
+            return ((System.identityHashCode(mResources) * 31 + mId) * 31 + mDensity) * 31 + mKind;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return mResources == k.mResources && mId == k.mId
+                    && mDensity == k.mDensity && mKind == k.mKind;
+        }
+    }
+
+    // value with size estimated when loaded
+    private static class Entry {
+        final Object mValue;
+        final int mSize; // in KB
+        Entry(Object value, long bytes) {
+            mValue = value;
+            mSize = Math.max(1, (int) (bytes / 1024));
+        }
+    }
+
+    // 1/16 of heap
+    private static final LruCache<Key, Entry> sCache = new LruCache<Key, Entry>(
+            (int) (Runtime.getRuntime().maxMemory() / 1024 / 16)) {
+        @Override
+        protected int sizeOf(Key key, Entry value) {
+            return value.mSize;
+        }
+    };
+
+    // increased by flush, values loaded before are not put
+    private static int sGeneration;
+
+    /*
+     * density: 0 for current density
+     */
+    static Drawable getDrawable(OverlayResources resources, int id, int density) {
+        Key key = new Key(resources, id, density, KIND_DRAWABLE);
+        Entry entry = sCache.get(key);
+        if (entry != null)
+            return ((Drawable.ConstantState) entry.mValue).newDrawable(resources);
+        int generation = generation();
+        Drawable drawable = density == 0 ? resources.getDrawable(id)
+                : resources.getDrawableForDensity(id, density);
+        if (drawable != null) {
+            Drawable.ConstantState state = drawable.getConstantState();
+            if (state != null)
+                put(key, state, byteSize(drawable), generation);
+        }
+        return drawable;
+    }
+
+    static CharSequence getText(OverlayResources resources, int id) {
+        Key key = new Key(resources, id, 0, KIND_TEXT);
+        Entry entry = sCache.get(key);
+        if (entry != null)
+            return (CharSequence) entry.mValue;
+        int generation = generation();
+        CharSequence text = resources.getText(id);
+        put(key, text, text.length() * 2 + 32, generation);
+        return text;
+    }
+
+    static CharSequence[] getTextArray(OverlayResources resources, int id) {
+        Key key = new Key(resources, id, 0, KIND_TEXT_ARRAY);
+        Entry entry = sCache.get(key);
+        CharSequence[] array;
+        if (entry != null) {
+            array = (CharSequence[]) entry.mValue;
+        } else {
+            int generation = generation();
+            array = resources.getTextArray(id);
+            put(key, array, byteSize(array), generation);
+        }
+        return array.clone();
+    }
+
+    static String[] getStringArray(OverlayResources resources, int id) {
+        Key key = new Key(resources, id, 0, KIND_STRING_ARRAY);
+        Entry entry = sCache.get(key);
+        String[] array;
+        if (entry != null) {
+            array = (String[]) entry.mValue;
+        } else {
+            int generation = generation();
+            array = resources.getStringArray(id);
+            put(key, array, byteSize(array), generation);
+        }
+        return array.clone();
+    }
+
+    static int[] getIntArray(OverlayResources resources, int id) {
+        Key key = new Key(resources, id, 0, KIND_INT_ARRAY);
+        Entry entry = sCache.get(key);
+        int[] array;
+        if (entry != null) {
+            array = (int[]) entry.mValue;
+        } else {
+            int generation = generation();
+            array = resources.getIntArray(id);
+            put(key, array, array.length * 4 + 16, generation);
+        }
+        return array.clone();
+    }
+
+    /*
+     * Load resource into cache ahead of use, drawable files are loaded as
+     *   drawables, strings as text. Other files (colors, layouts, xml) and
+     *   values are not cached here.
+     */
+    static void preload(OverlayResources resources, int id) {
+        TypedValue value = new TypedValue();
+        try {
+            resources.getValue(id, value, true);
+            if (value.type != TypedValue.TYPE_STRING)
+                return;
+            String file = value.string == null ? "" : value.string.toString();
+            if (file.startsWith("res/drawable") || file.startsWith("res/mipmap"))
+                getDrawable(resources, id, 0);
+            else if (!file.startsWith("res/"))
+                getText(resources, id);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "preload 0x" + Integer.toHexString(id), e);
+        }
+    }
+
+    /*
+     * Called when configuration changed, cached values may be of other configuration
+     */
+    static void flush() {
+        synchronized (sCache) {
+            ++sGeneration;
+            sCache.evictAll();
+        }
+    }
+
+    private static int generation() {
+        synchronized (sCache) {
+            return sGeneration;
+        }
+    }
+
+    // not put if flushed since loaded, value may be of old configuration
+    private static void put(Key key, Object value, long bytes, int generation) {
+        synchronized (sCache) {
+            if (generation == sGeneration)
+                sCache.put(key, new Entry(value, bytes));
+        }
+    }
+
+    static void trimMemory(int level) {
+        Log.d(TAG, "trimMemory: level " + level + ", size " + sCache.size());
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(sCache.maxSize() / 2);
+        }
+    }
+
+    // from drawable already loaded, not create one to measure
+    private static long byteSize(Drawable d) {
+        if (d instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) d).getBitmap();
+            if (bitmap != null)
+                return bitmap.getByteCount();
+        }
+        return Math.max(1024, (long) d.getIntrinsicWidth() * d.getIntrinsicHeight() * 4);
+    }
+
+    private static long byteSize(CharSequence[] array) {
+        long size = 16;
+        for (CharSequence s : array)
+            size += s == null ? 4 : s.length() * 2 + 32;
+        return size;
+    }
+
+}
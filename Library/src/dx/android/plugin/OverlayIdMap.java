@@ -0,0 +1,112 @@
+package dx.android.plugin;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * int -> long open addressing hash map, no boxing, no allocation on lookup.
+ *   Lookups take no lock and may run while put on other thread, puts are
+ *   serialized. A value is stored before its key, so a key seen by lookup
+ *   has its value. Table is replaced when grow, old one is not changed then,
+ *   lookups on it may miss new keys only.
+ *   Key 0 is the empty slot in table, kept in its own field.
+ */
+final class OverlayIdMap {
+
+    static final long ABSENT = Long.MIN_VALUE;
+
+    private static final class Table {
+        final AtomicIntegerArray mKeys;
+        final AtomicLongArray mValues;
+        final int mMask;
+
+        Table(int n) {
+            mKeys = new AtomicIntegerArray(n);
+            mValues = new AtomicLongArray(n);
+            mMask = n - 1;
+        }
+    }
+
+    private volatile Table mTable;
+    private volatile long mZero = ABSENT;
+    // guarded by this, keys in table
+    private int mSize;
+
+    OverlayIdMap() {
+        this(64);
+    }
+
+    OverlayIdMap(int capacity) {
+        int n = 16;
+        while (n < capacity * 2)
+            n <<= 1;
+        mTable = new Table(n);
+    }
+
+    long get(int key) {
+        if (key == 0)
+            return mZero;
+        Table t = mTable;
+        int i = mix(key) & t.mMask;
+        while (true) {
+            int k = t.mKeys.get(i);
+            if (k == key)
+                return t.mValues.get(i);
+            if (k == 0)
+                return ABSENT;
+            i = (i + 1) & t.mMask;
+        }
+    }
+
+    synchronized void put(int key, long value) {
+        if (key == 0) {
+            mZero = value;
+            return;
+        }
+        if ((mSize + 1) * 2 > mTable.mKeys.length())
+            grow();
+        if (put(mTable, key, value))
+            ++mSize;
+    }
+
+    synchronized int size() {
+        return mZero == ABSENT ? mSize : mSize + 1;
+    }
+
+    // return true if key is new
+    private static boolean put(Table t, int key, long value) {
+        int i = mix(key) & t.mMask;
+        while (true) {
+            int k = t.mKeys.get(i);
+            if (k == key) {
+                t.mValues.set(i, value);
+                return false;
+            }
+            if (k == 0) {
+                t.mValues.set(i, value);
+                t.mKeys.set(i, key);
+                return true;
+            }
+            i = (i + 1) & t.mMask;
+        }
+    }
+
+    // filled before published, lookups see old or whole new table
+    private void grow() {
+        Table old = mTable;
+        Table t = new Table(old.mKeys.length() * 2);
+        for (int i = 0; i < old.mKeys.length(); ++i) {
+            int k = old.mKeys.get(i);
+            if (k != 0)
+                put(t, k, old.mValues.get(i));
+        }
+        mTable = t;
+    }
+
+    // resource ids differ mostly in low bits, spread them
+    private static int mix(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -1,18 +1,22 @@
 package dx.android.plugin;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 import dx.android.plugin.OverlayStyleable.IStyleable;
-import dx.android.plugin.OverlayStyleable.StyleableSet;
+import dx.android.plugin.OverlayStyleable.StyleablePlan;
 
 import android.content.Context;
-import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.util.Pair;
 import android.util.SparseArray;
 import android.view.InflateException;
 import android.view.LayoutInflater;
@@ -29,18 +33,100 @@ public class OverlayLayoutFactory implements LayoutInflater.Factory {
     
     private Map<View, StyleSet<View>> mStyledViews = new WeakHashMap<View, StyleSet<View>>();
     private SparseArray<StyleSet<?>> mIdStyleSets = new SparseArray<StyleSet<?>>();
+    
+    // time of one batch of restyle, leave rest of frame to layout and draw
+    private static final long FRAME_BUDGET = 8;
+    
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    // selections that styled views may show, more than one while restyle is pending
+    private List<TargetResources.Selection> mShownSelections = 
+            new ArrayList<TargetResources.Selection>();
+    private TargetResources.Selection mPendingSelection;
+    private List<PendingStyle> mPendingStyles = new ArrayList<PendingStyle>();
+    private int mPendingIndex;
 
     OverlayLayoutFactory(TargetResources resources, LayoutInflater inflater, boolean track) {
         mResources = resources;
         mInflater = inflater;
         mTrack = track;
+        mShownSelections.add(resources.getSelection());
+    }
+    
+    /*
+     * Restyle views to new selection asynchronously on main thread,
+     *   only attributes mapped differently are applied, visible views first.
+     */
+    void updateViews(final TargetResources.Selection selection) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                diffViews(selection);
+            }
+        });
     }
     
-    void updateViews() {
+    void collectIds(Set<Integer> ids) {
+        for (StyleSet<View> styleSet : mStyledViews.values()) {
+            for (int i = 0; i < styleSet.mSize; ++i)
+                ids.add(styleSet.mIds[i]);
+        }
+    }
+    
+    private void diffViews(TargetResources.Selection selection) {
+        if (!mShownSelections.contains(selection))
+            mShownSelections.add(selection);
+        List<PendingStyle> visible = new ArrayList<PendingStyle>();
+        List<PendingStyle> hidden = new ArrayList<PendingStyle>();
+        String pkgName = mResources.mPackageName;
         for (Entry<View, StyleSet<View>> view : mStyledViews.entrySet()) {
-            view.getValue().apply(view.getKey(), true);
+            StyleSet<View> styleSet = view.getValue();
+            for (int i = 0; i < styleSet.mSize; ++i) {
+                int id = styleSet.mIds[i];
+                boolean changed = false;
+                for (TargetResources.Selection s : mShownSelections) {
+                    if (!s.sameMapping(selection, pkgName, id)) {
+                        changed = true;
+                        break;
+                    }
+                }
+                if (!changed)
+                    continue;
+                PendingStyle p = new PendingStyle(view.getKey(), styleSet, i);
+                if (view.getKey().isShown())
+                    visible.add(p);
+                else
+                    hidden.add(p);
+            }
         }
+        Log.d(TAG, "diffViews: " + visible.size() + " visible, " 
+                + hidden.size() + " hidden");
+        visible.addAll(hidden);
+        mPendingSelection = selection;
+        mPendingStyles = visible;
+        mPendingIndex = 0;
+        mHandler.removeCallbacks(mApplyPending);
+        mApplyPending.run();
     }
+    
+    private Runnable mApplyPending = new Runnable() {
+        @Override
+        public void run() {
+            long deadline = SystemClock.uptimeMillis() + FRAME_BUDGET;
+            while (mPendingIndex < mPendingStyles.size()) {
+                PendingStyle p = mPendingStyles.get(mPendingIndex++);
+                p.mStyleSet.apply(p.mView, p.mIndex, mPendingSelection, true);
+                if (SystemClock.uptimeMillis() >= deadline)
+                    break;
+            }
+            if (mPendingIndex < mPendingStyles.size()) {
+                mHandler.post(this);
+            } else {
+                mPendingStyles = new ArrayList<PendingStyle>();
+                mShownSelections.clear();
+                mShownSelections.add(mPendingSelection);
+            }
+        }
+    };
 
     private static final String[] sClassPrefixList = {
         "android.widget.",
@@ -49,6 +135,25 @@ public class OverlayLayoutFactory implements LayoutInflater.Factory {
         null, 
     };
 
+    /*
+     * Short tag name -> index of prefix it is found with, -1 if not found with any.
+     *   Short names are framework classes, same for all class loaders.
+     */
+    private static final Map<String, Integer> sPrefixIndexes = new HashMap<String, Integer>();
+    
+    private static int resolvePrefix(String name) {
+        synchronized (sPrefixIndexes) {
+            Integer index = sPrefixIndexes.get(name);
+            return index == null ? 0 : index;
+        }
+    }
+    
+    private static void putPrefix(String name, int index) {
+        synchronized (sPrefixIndexes) {
+            sPrefixIndexes.put(name, index);
+        }
+    }
+
     private static final String nsAndroid = "http://schemas.android.com/apk/res/android";
     
     @Override
@@ -60,12 +165,17 @@ public class OverlayLayoutFactory implements LayoutInflater.Factory {
         if (attrs == null)
             return null;
         int prefixIndex = 3;
-        if (-1 == name.indexOf('.'))
-            prefixIndex = 0;
+        if (-1 == name.indexOf('.')) {
+            prefixIndex = resolvePrefix(name);
+            if (prefixIndex < 0)
+                return null;
+        }
         View view = null;
         for (int i = prefixIndex; i < sClassPrefixList.length; ++i) {
             try {
                 view = mInflater.createView(name, sClassPrefixList[i], attrs);
+                if (i != prefixIndex)
+                    putPrefix(name, i);
                 break;
             } catch (ClassNotFoundException e) {
                 continue;
@@ -80,10 +190,12 @@ public class OverlayLayoutFactory implements LayoutInflater.Factory {
                 return null;
             }
         }
+        if (view == null && prefixIndex < 3)
+            putPrefix(name, -1);
         if (view == null)
             return null;
         StyleSet<View> styleSet = createStyleSet(view, attrs);
-        if (!styleSet.mStyles.isEmpty()) {
+        if (styleSet.mSize > 0) {
             if (mTrack)
                 mStyledViews.put(view, styleSet);
             if (mResources.hasSelectedOverlays())
@@ -101,27 +213,12 @@ public class OverlayLayoutFactory implements LayoutInflater.Factory {
             if (styleSet != null)
                 return styleSet;
         }
-        styleSet = new StyleSet<E>();
-        Class<? extends View> cls = view.getClass();
-        while (true) {
-            StyleableSet<?> styles = 
-                    OverlayStyleable.sOverlayStyleables.get(cls);
-            if (styles == null) {
-                cls = (Class<View>) cls.getSuperclass();
-                continue;
-            }
-            for (Entry<String, ?> os 
-                    : styles.mStyleables.entrySet()) {
-                String attr = os.getKey();
-                IStyleable<View> style = (IStyleable<View>) os.getValue();
-                int id = attrs.getAttributeResourceValue(nsAndroid, attr, 0);
-                if (id == 0)
-                    continue;
-                styleSet.put(attr, style, id);
-            }
-            if (cls == View.class)
-                break;
-            cls = (Class<? extends View>) cls.getSuperclass();
+        StyleablePlan plan = OverlayStyleable.getPlan(view.getClass());
+        styleSet = new StyleSet<E>(plan);
+        for (int i = 0; i < plan.mAttrs.length; ++i) {
+            int id = attrs.getAttributeResourceValue(nsAndroid, plan.mAttrs[i], 0);
+            if (id != 0)
+                styleSet.add(i, id);
         }
         if (viewId > 0) {
             mIdStyleSets.put(viewId, styleSet);
@@ -129,42 +226,56 @@ public class OverlayLayoutFactory implements LayoutInflater.Factory {
         return styleSet;
     }
     
-    private static class Style<E extends View> {
-        IStyleable<E> mStyleable;
-        int mId;
-        static <E extends View> Style<E> make(IStyleable<E> styleable, int id) {
-            Style<E> style = new Style<E>();
-            style.mStyleable = styleable;
-            style.mId = id;
-            return style;
-        }
-        @Override
-        public String toString() {
-            return Integer.toHexString(mId) + ": " + mStyleable;
+    private static class PendingStyle {
+        final View mView;
+        final StyleSet<View> mStyleSet;
+        final int mIndex;
+        PendingStyle(View view, StyleSet<View> styleSet, int index) {
+            mView = view;
+            mStyleSet = styleSet;
+            mIndex = index;
         }
     }
     
+    /*
+     * Styled attributes of a view, index into plan and resource id, in parallel arrays
+     */
     class StyleSet<E extends View> {
         
-        final Map<String, Style<? super E>> mStyles = 
-            new TreeMap<String, Style<? super E>>();
+        final StyleablePlan mPlan;
+        final int[] mIndexes;
+        final int[] mIds;
+        int mSize;
+        
+        StyleSet(StyleablePlan plan) {
+            mPlan = plan;
+            mIndexes = new int[plan.mAttrs.length];
+            mIds = new int[plan.mAttrs.length];
+        }
         
-        void put(String attr, IStyleable<? super E> styleable, int id) {
-            mStyles.put(attr, Style.make(styleable, id));
+        void add(int index, int id) {
+            mIndexes[mSize] = index;
+            mIds[mSize++] = id;
         }
         
         void apply(E view, boolean self) {
-            for (Entry<String, Style<? super E>> style : mStyles.entrySet()) {
-                String name = view.getClass().getName();
-                String attr = style.getKey();
-                IStyleable<? super E> styleable = style.getValue().mStyleable;
-                int id = style.getValue().mId;
-                Pair<Resources, Integer> o = mResources.map(id, self);
-                if (o != null) {
-                    Log.v(TAG, name + ": apply " + attr 
-                            + " with 0x" + Integer.toHexString(o.second));
-                    styleable.apply(view, o.first, o.second);
-                }
+            TargetResources.Selection s = mResources.getSelection();
+            for (int i = 0; i < mSize; ++i) {
+                apply(view, i, s, self);
+            }
+        }
+        
+        @SuppressWarnings("unchecked")
+        void apply(E view, int i, TargetResources.Selection s, boolean self) {
+            int id = mIds[i];
+            long m = s.map(mResources.mPackageName, id);
+            if (m != TargetResources.NO_MAP || self) {
+                int id1 = TargetResources.Selection.id(m, id);
+                Log.v(TAG, view.getClass().getName() + ": apply " 
+                        + mPlan.mAttrs[mIndexes[i]] + " with 0x" + Integer.toHexString(id1));
+                IStyleable<? super E> styleable = 
+                        (IStyleable<? super E>) mPlan.mStyleables[mIndexes[i]];
+                styleable.apply(view, s.resources(m, mResources.mBase), id1);
             }
         }
 
@@ -1,18 +1,39 @@
 package dx.android.plugin;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
 import android.content.res.Resources;
 
+import dx.android.util.system.ChecksumManifest;
+
 class OverlayResources extends PluginResources {
     
-    static {
-        System.loadLibrary("idmap_jni");
+    /*
+     * Look up idmap in java, native library is still used to create idmap files
+     */
+    static volatile boolean sJavaIdmap;
+    
+    private static boolean sNativeLoaded;
+    
+    // by absolute idmap path, native open may create the file. Different
+    //   idmaps are opened in parallel, the library builds its own asset
+    //   manager and table for each open, locked inside as in framework.
+    private static final Map<String, Object> sIdmapLocks = new HashMap<String, Object>();
+    
+    /*
+     * Opened idmap of one target, java or native
+     */
+    static class Target {
+        Idmap mIdmap;
+        long mMap;
     }
     
-    private Map<String, Long> mMaps = new TreeMap<String, Long>();
+    // copy on write, targets are added from plugins starting in parallel
+    private volatile Map<String, Target> mTargets = Collections.emptyMap();
 
     OverlayResources(Resources base, File path, String pkgName) {
         super(base, path, pkgName);
@@ -22,32 +43,116 @@ class OverlayResources extends PluginResources {
         super(base);
     }
     
-    void addTarget(TargetResources target, File idmap) {
-        long map = open(target.mPath.getAbsolutePath(), mPath.getAbsolutePath(), 
-                target.mPackageName, idmap.getAbsolutePath());
-        if (map != 0) {
-            mMaps.put(target.mPackageName, map);
+    private static synchronized void loadNative() {
+        if (!sNativeLoaded) {
+            System.loadLibrary("idmap_jni");
+            sNativeLoaded = true;
         }
     }
     
+    /*
+     * Open or create idmap of target, thread safe, not published until addTarget.
+     *   With java reader, idmaps matched in manifest are opened without checking apks.
+     *   Native open always checks idmap itself, manifest is not used then,
+     *   also used for idmaps java reader rejects.
+     */
+    Target openTarget(TargetResources target, File idmap, ChecksumManifest manifest) {
+        String name = idmap.getName();
+        // version of apks that idmap is created from
+        long stamp = (target.mPath.lastModified() * 31 + mPath.lastModified()) & Long.MAX_VALUE;
+        Target t = new Target();
+        if (sJavaIdmap) {
+            if (manifest.matches(name, stamp, idmap.length(), idmap))
+                t.mIdmap = Idmap.open(idmap);
+            if (t.mIdmap == null)
+                t.mIdmap = Idmap.open(target.mPath, mPath, idmap);
+            if (t.mIdmap == null) {
+                // not created or out of date, create with native
+                long m = nativeOpen(target, idmap);
+                if (m != 0)
+                    t.mIdmap = Idmap.open(target.mPath, mPath, idmap);
+                if (t.mIdmap == null) {
+                    // not readable in java, like overlay not of package 0x7f
+                    manifest.remove(name);
+                    if (m == 0)
+                        return null;
+                    t.mMap = m;
+                    return t;
+                }
+                close(m);
+            }
+            manifest.put(name, stamp, idmap.length());
+        } else {
+            // may be recreated, not trusted by java reader later
+            manifest.remove(name);
+            t.mMap = nativeOpen(target, idmap);
+            if (t.mMap == 0)
+                return null;
+        }
+        return t;
+    }
+    
+    synchronized void addTarget(String pkgName, Target target) {
+        Map<String, Target> targets = new TreeMap<String, Target>(mTargets);
+        // replaced native map is not closed, lookups may still use it,
+        //   replaced java map is only dropped from cache
+        Target old = targets.put(pkgName, target);
+        mTargets = targets;
+        if (old != null && old.mIdmap != null)
+            old.mIdmap.release();
+    }
+    
     public int map(String pkgName, int id) {
-        Long map = mMaps.get(pkgName);
-        return map == null ? 0 : map(map, id);
+        Target t = mTargets.get(pkgName);
+        if (t == null)
+            return 0;
+        if (t.mIdmap != null)
+            return t.mIdmap.map(id);
+        // read only lookup of opened map
+        return map(t.mMap, id);
     }
     
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
-        for (long map : mMaps.values())
-            close(map);
-        mMaps.clear();
+        for (Target t : mTargets.values()) {
+            if (t.mMap != 0)
+                close(t.mMap);
+            if (t.mIdmap != null)
+                t.mIdmap.release();
+        }
+        mTargets = Collections.emptyMap();
+    }
+    
+    private long nativeOpen(TargetResources target, File idmap) {
+        return nativeOpen(target.mPath, target.mPackageName, mPath, idmap);
+    }
+    
+    static long nativeOpen(File target, String pkgName, File overlay, File idmap) {
+        loadNative();
+        synchronized (idmapLock(idmap)) {
+            return open(target.getAbsolutePath(), overlay.getAbsolutePath(), 
+                    pkgName, idmap.getAbsolutePath());
+        }
+    }
+    
+    private static Object idmapLock(File idmap) {
+        String path = idmap.getAbsolutePath();
+        synchronized (sIdmapLocks) {
+            Object lock = sIdmapLocks.get(path);
+            if (lock == null) {
+                lock = new Object();
+                sIdmapLocks.put(path, lock);
+            }
+            return lock;
+        }
     }
     
     private static native long open(String target, String overlay, 
             String pkgName, String idmap);
     
-    private static native int map(long map, int id);
+    static native int map(long map, int id);
     
-    private static native void close(long map);
+    static native void close(long map);
     
 }
@@ -3,6 +3,7 @@ package dx.android.plugin;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
 
 import android.content.res.Resources;
 import android.util.TypedValue;
@@ -91,6 +92,46 @@ public class OverlayStyleable {
         sOverlayStyleables.put(ListView.class, lisView);
     };
     
+    /*
+     * Styleables of a view class and all its super classes, flattened,
+     *   in attribute name order, super class one wins on same name.
+     */
+    static class StyleablePlan {
+        final String[] mAttrs;
+        final IStyleable<?>[] mStyleables;
+        StyleablePlan(Map<String, IStyleable<?>> styleables) {
+            mAttrs = styleables.keySet().toArray(new String[styleables.size()]);
+            mStyleables = styleables.values().toArray(new IStyleable<?>[styleables.size()]);
+        }
+    }
+    
+    // weak keys, not pin view classes of plugin loaders, plans not refer to them
+    private static final Map<Class<?>, StyleablePlan> sPlans = 
+            new WeakHashMap<Class<?>, StyleablePlan>();
+    
+    static StyleablePlan getPlan(Class<? extends View> cls) {
+        synchronized (sPlans) {
+            StyleablePlan plan = sPlans.get(cls);
+            if (plan != null)
+                return plan;
+        }
+        Map<String, IStyleable<?>> styleables = new TreeMap<String, IStyleable<?>>();
+        Class<?> c = cls;
+        while (true) {
+            StyleableSet<?> styles = sOverlayStyleables.get(c);
+            if (styles != null)
+                styleables.putAll(styles.mStyleables);
+            if (c == View.class)
+                break;
+            c = c.getSuperclass();
+        }
+        StyleablePlan plan = new StyleablePlan(styleables);
+        synchronized (sPlans) {
+            sPlans.put(cls, plan);
+        }
+        return plan;
+    }
+    
     private static final TypedValue sTypeValue = new TypedValue();
     
     private static float getFloat(Resources resc, int id) {
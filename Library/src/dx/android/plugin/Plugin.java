@@ -7,14 +7,14 @@ import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 
+import dx.android.util.system.CacheCollector;
 import dx.android.util.system.FileLock;
-import dx.android.util.system.Files;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class Plugin {
 
@@ -22,7 +22,11 @@ public class Plugin {
     static final String SUB_DIR_LIBS = "libs";
     static final String SUB_DIR_PROPS = "props";
     static final String SUB_DIR_IDMAPS = "idmaps";
+    static final String SUB_DIR_REGISTRY = "registry";
     static final String FILE_LOCK = "lock";
+    static final String FILE_INDEX = "index";
+    static final String FILE_CLASSES = "classes";
+    static final String FILE_MANIFEST = "manifest";
     
     private static final String TAG = "Plugin";
     private static final String META_PLUGIN = Plugin.class.getPackage().getName();
@@ -90,6 +94,20 @@ public class Plugin {
     }
 
     boolean impt(Context context) {
+        return impt(context, null);
+    }
+
+    boolean impt(Context context, PluginIndex index) {
+        long trace = 0;
+        try {
+            trace = PluginTrace.begin(PluginTrace.Phase.IMPORT, mApkPath);
+            return imptApk(context, index);
+        } finally {
+            PluginTrace.end(PluginTrace.Phase.IMPORT, mPackageName, trace);
+        }
+    }
+    
+    private boolean imptApk(Context context, PluginIndex index) {
         Log.d(TAG, "impt: " + mApkPath);
         mStatus = Status.FAILED;
         // embeded plugin
@@ -100,14 +118,24 @@ public class Plugin {
             return true;
         }
         mContext = new PluginContext(context, this);
+        if (index != null && index.restore(this)) {
+            Log.d(TAG, "impt: " + mPackageName + " from index");
+            return true;
+        }
         try {
             Bundle appMeta = null;
             PackageManager packageManager = context.getPackageManager();
-            PackageInfo packageInfo = packageManager.getPackageArchiveInfo(
-                    mApkPath.getAbsolutePath(), PackageManager.GET_META_DATA);
-            if (null != packageInfo && null != packageInfo.applicationInfo) {
-                appMeta = packageInfo.applicationInfo.metaData;
-                mPackageName = packageInfo.packageName;
+            long trace = 0;
+            try {
+                trace = PluginTrace.begin(PluginTrace.Phase.PARSE, mApkPath);
+                PackageInfo packageInfo = packageManager.getPackageArchiveInfo(
+                        mApkPath.getAbsolutePath(), PackageManager.GET_META_DATA);
+                if (null != packageInfo && null != packageInfo.applicationInfo) {
+                    appMeta = packageInfo.applicationInfo.metaData;
+                    mPackageName = packageInfo.packageName;
+                }
+            } finally {
+                PluginTrace.end(PluginTrace.Phase.PARSE, mPackageName, trace);
             }
             if (appMeta == null) {
                 Log.d(TAG, "impt: " + mPackageName + " no metadata in plugin's application");
@@ -116,14 +144,25 @@ public class Plugin {
             int infoRes = appMeta.getInt(META_PLUGIN);
             if (infoRes == 0) {
                 Log.d(TAG, "impt: " + mPackageName + " no \"" + META_PLUGIN + "\" in plugin's metadata");
+                if (index != null)
+                    index.record(this);
                 return true;
             }
-            if (!mInfo.impt(mContext.getResources(), infoRes)) {
+            boolean parsed;
+            try {
+                trace = PluginTrace.begin(PluginTrace.Phase.PARSE, mPackageName);
+                parsed = mInfo.impt(mContext.getResources(), infoRes);
+            } finally {
+                PluginTrace.end(PluginTrace.Phase.PARSE, mPackageName, trace);
+            }
+            if (!parsed) {
                 Log.d(TAG, "impt: " + mPackageName + " import metadata failed");
                 return false;
             }
             mCacheDir = new File(mCacheDir, mPackageName);
             mStatus = Status.IMPORTED;
+            if (index != null)
+                index.record(this);
             return true;
         } catch (Throwable e) {
             Log.w(TAG, "impt", e);
@@ -161,76 +200,33 @@ public class Plugin {
     boolean check(Class<? extends PluginBase>[] templates) {
         if (mStatus != Status.IMPORTED)
             return false;
-        if (isTemplateFrom(templates))
+        long trace = 0;
+        boolean result;
+        try {
+            trace = PluginTrace.begin(PluginTrace.Phase.CHECK, mPackageName);
+            result = isTemplateFrom(templates);
+        } finally {
+            PluginTrace.end(PluginTrace.Phase.CHECK, mPackageName, trace);
+        }
+        if (result)
             return true;
         Log.d(TAG, "check: " + mPackageName 
                 + " not template from all templates");
         return false;
     }
     
-    boolean check(Map<String, Plugin> plugins) {
-        if (mStatus == Status.CHECKED)
-            return true;
-        if (mStatus != Status.IMPORTED)
-            return false;
-        if (mInfo.mDepends != null) {
-            mStatus = Status.FAILED;
-            List<Plugin> depends = new ArrayList<Plugin>();
-            for (String dep : mInfo.mDepends) {
-                boolean weak = false;
-                if (dep.startsWith("?")) {
-                    weak = true;
-                    dep = dep.substring(1);
-                }
-                Plugin depend = plugins.get(dep);
-                if (depend == null) {
-                    Log.w(TAG, "check: depend " + dep + " not found");
-                    if (weak)
-                        continue;
-                    return false;
-                }
-                if ((mInfo.mOverlayTargets == null) != 
-                        (depend.mInfo.mOverlayTargets == null)) {
-                    if (mInfo.mOverlayTargets == null)
-                        Log.w(TAG, "check: depend " + dep + " is overlay");
-                    else
-                        Log.w(TAG, "check: depend " + dep + " not overlay");
-                    return false;
-                }
-                if (depend.mStatus == Status.FAILED) {
-                    Log.w(TAG, "check: depend " + dep + " failed");
-                    return false;
-                }
-                if (depend.mStatus == Status.IMPORTED) {
-                    if (!depend.check(plugins)) {
-                        Log.w(TAG, "check: depend " + dep + " failed");
-                        return false;
-                    }
-                }
-                depends.add(depend);
-            }
-            mDepends = depends;
-        }
-        if (mInfo.mOverlayTargets != null) {
-            mOverlayTargets = new ArrayList<Plugin>();
-            for (String tgt : mInfo.mOverlayTargets) {
-                Plugin target = plugins.get(tgt);
-                if (target != null) {
-                    mOverlayTargets.add(target);
-                    target.addOverlay(this);
-                }
-            }
-        }
-        mStatus = Status.CHECKED;
-        return true;
-    }
-
     private static String[] sFileList = {
         FILE_LOCK, SUB_DIR_LIBS, SUB_DIR_DEX, SUB_DIR_PROPS
     };
     
+    // must start on main thread, embeded plugins have no metadata, also keep there
+    boolean isMainThread() {
+        return mInfo.mMainThread || mClassLoader != null;
+    }
+    
+    // synchronized for parallel start, depends may be started by dependents in delay mode
     @SuppressWarnings("unchecked")
-    boolean start(boolean delay) {
+    synchronized boolean start(boolean delay) {
         if (mStatus == Status.STARTED)
             return true;
         if (mStatus != Status.CHECKED)
@@ -242,11 +238,12 @@ public class Plugin {
             return true;
         }
         mStatus = Status.FAILED;
-        // clean unused files
+        // clean unused files, after load finished
+        CacheCollector collector = PluginManager.getInstance().getCacheCollector();
         List<String> listKeep = new ArrayList<String>(Arrays.asList(sFileList));
         if (mCacheDir.getParentFile().equals(PluginManager.getInstance().getCacheDir()))
             listKeep.add(SUB_DIR_IDMAPS);
-        Files.cleanOthers(mCacheDir, listKeep);
+        collector.cleanOthers(mCacheDir, listKeep, new File(mCacheDir, FILE_LOCK));
         // start depends & overlays
         for (Plugin dep : mDepends) {
             if (!dep.start(delay)) {
@@ -268,7 +265,7 @@ public class Plugin {
                 ((PluginContext) mContext).upgradeResources(cacheDir);
             }
             if (mOverlayTargets != sEmptyPluginList) {
-                Files.cleanOthers(mCacheDir);
+                collector.cleanOthers(mCacheDir, Collections.<String>emptyList(), null);
                 mStatus = Status.STARTED;
                 return true;
             }
@@ -277,8 +274,15 @@ public class Plugin {
             // not embeded plugin
             if (mClassLoader == null) {
                 FileLock lock = FileLock.lock(lockFile);
-                mClassLoader = new PluginClassLoader(this);
-                lock.release();
+                long trace = 0;
+                try {
+                    trace = PluginTrace.begin(PluginTrace.Phase.CLASSLOADER, mPackageName);
+                    mClassLoader = new PluginClassLoader(this);
+                } finally {
+                    PluginTrace.end(PluginTrace.Phase.CLASSLOADER, mPackageName, trace);
+                    if (lock != null)
+                        lock.release();
+                }
                 String className = mInfo.mPluginClass;
                 if (className == null)
                     className = mPackageName + ".Plugin";
@@ -292,7 +296,14 @@ public class Plugin {
             mPlugin = mClass.newInstance();
             if (mPlugin == null)
                 return false;
-            int result = mPlugin.start(mContext);
+            long trace = 0;
+            int result;
+            try {
+                trace = PluginTrace.begin(PluginTrace.Phase.START, mPackageName);
+                result = mPlugin.start(mContext);
+            } finally {
+                PluginTrace.end(PluginTrace.Phase.START, mPackageName, trace);
+            }
             if (result != 0) {
                 Log.e(TAG, "start: failed with " + result);
                 return false;
@@ -307,7 +318,7 @@ public class Plugin {
         return false;
     }
 
-    boolean stop() {
+    synchronized boolean stop() {
         if (mStatus != Status.STARTED)
             return true;
         Log.d(TAG, "stop: " + mPackageName);
@@ -5,17 +5,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
+import dx.android.util.system.ChecksumManifest;
 import dx.android.util.system.FileLock;
 import dx.android.util.system.Files;
+import dx.android.util.system.Workers;
+import dx.android.util.system.ZipIndex;
 
 import dalvik.system.DexClassLoader;
 
@@ -31,6 +36,25 @@ public class PluginClassLoader extends DexClassLoader {
     File mLockPath;
     File mDexPath;
     NativeLibraryInfo mLibInfo;
+    // libs are up to date, no need to check again
+    volatile boolean mLibsExtracted;
+    // resolved libraries, "" for not found
+    final Map<String, String> mLibraries = new ConcurrentHashMap<String, String>();
+    PackageNode mPackages;
+    // package name -> self and all depends
+    Map<String, Plugin> mClosure;
+    ClassIndex mClassIndex;
+    
+    private static final int MAX_MISSING_CLASSES = 256;
+    
+    @SuppressWarnings("serial")
+    private final Map<String, Boolean> mMissingClasses = 
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_MISSING_CLASSES;
+        }
+    };
 
     @SuppressWarnings("deprecation")
     private static String[] getAbiList() {
@@ -59,42 +83,154 @@ public class PluginClassLoader extends DexClassLoader {
         mLockPath = new File(plugin.mCacheDir, Plugin.FILE_LOCK);
         mDexPath = dexPath;
         mLibInfo = info;
+        mClosure = new HashMap<String, Plugin>();
+        mPackages = buildPackages(plugin, getParent(), mClosure);
+        PluginManager manager = PluginManager.getInstance();
+        mClassIndex = manager == null ? null : manager.getClassIndex();
     }
 
     @Override
     protected Class<?> findClass(String className)
             throws ClassNotFoundException {
+        synchronized (mMissingClasses) {
+            if (mMissingClasses.containsKey(className))
+                throw new ClassNotFoundException(className);
+        }
+        // route to owner plugin before local lookup
+        boolean cacheable = true;
+        Plugin owner = null;
+        if (mClassIndex != null) {
+            // exact route by dex class index, owner may not be a depend
+            String pkg = mClassIndex.findOwner(className);
+            if (pkg != null)
+                owner = mClosure.get(pkg);
+        }
+        if (owner == null)
+            owner = findOwner(className);
+        if (owner != null && owner != mPlugin) {
+            ClassLoader loader = owner.mClassLoader;
+            if (loader != null) {
+                try {
+                    Class<?> cls = loader.loadClass(className);
+                    PluginTrace.count(PluginTrace.Counter.CLASS_LOAD);
+                    return cls;
+                } catch (ClassNotFoundException e) {
+                }
+            } else {
+                // delayed depend, not started yet
+                cacheable = false;
+            }
+        }
         try {
-            return super.findClass(className);
+            Class<?> cls = super.findClass(className);
+            PluginTrace.count(PluginTrace.Counter.CLASS_LOAD);
+            return cls;
         } catch (ClassNotFoundException e) {
-            for (Plugin plugin : mPlugin.mDepends) {
-                if (className.startsWith(plugin.mPackageName)) {
-                    return plugin.mClassLoader.loadClass(className);
+            PluginTrace.count(PluginTrace.Counter.CLASS_NOT_FOUND);
+            if (cacheable) {
+                synchronized (mMissingClasses) {
+                    mMissingClasses.put(className, Boolean.TRUE);
                 }
             }
             throw e;
         }
     }
     
+    // package name segments trie, node with plugin owns the package
+    private static class PackageNode {
+        Map<String, PackageNode> mChildren;
+        Plugin mPlugin;
+    }
+    
+    // self and all depends (include indirect), longest package wins
+    private static PackageNode buildPackages(Plugin plugin, ClassLoader parent, 
+            Map<String, Plugin> closure) {
+        PackageNode root = new PackageNode();
+        List<Plugin> plugins = new ArrayList<Plugin>();
+        plugins.add(plugin);
+        for (int i = 0; i < plugins.size(); ++i) {
+            Plugin p = plugins.get(i);
+            for (Plugin d : p.mDepends) {
+                if (!plugins.contains(d))
+                    plugins.add(d);
+            }
+            // classes in parent are already tried
+            if (p != plugin && p.mClassLoader == parent)
+                continue;
+            if (!closure.containsKey(p.mPackageName))
+                closure.put(p.mPackageName, p);
+            PackageNode node = root;
+            for (String seg : p.mPackageName.split("\\.")) {
+                if (node.mChildren == null)
+                    node.mChildren = new HashMap<String, PackageNode>();
+                PackageNode child = node.mChildren.get(seg);
+                if (child == null) {
+                    child = new PackageNode();
+                    node.mChildren.put(seg, child);
+                }
+                node = child;
+            }
+            if (node.mPlugin == null)
+                node.mPlugin = p;
+        }
+        return root;
+    }
+    
+    private Plugin findOwner(String className) {
+        Plugin owner = null;
+        PackageNode node = mPackages;
+        int start = 0;
+        int end;
+        // last segment is class name
+        while (node.mChildren != null 
+                && (end = className.indexOf('.', start)) > 0) {
+            node = node.mChildren.get(className.substring(start, end));
+            if (node == null)
+                break;
+            if (node.mPlugin != null)
+                owner = node.mPlugin;
+            start = end + 1;
+        }
+        return owner;
+    }
+    
     @Override
     public String findLibrary(String name) {
-        String result = super.findLibrary(name);
+        String result = mLibraries.get(name);
+        if (result != null)
+            return result.length() == 0 ? null : result;
+        PluginTrace.count(PluginTrace.Counter.LIBRARY_MISS);
+        // only lock on miss
         FileLock lock = FileLock.lock(mLockPath);
-        if (result == null || (!mLibInfo.mEmbeded 
-                && lastModified(new File(result)) != mPlugin.mApkTime)) {
-            if (!mLibInfo.mExtractLibs) {
-                if (result != null) {
+        try {
+            if (mLibInfo.mExtractLibs) {
+                // extract all changed so once, for indirect load
+                if (!mLibsExtracted) {
+                    long trace = 0;
+                    try {
+                        trace = PluginTrace.begin(PluginTrace.Phase.NATIVE_LIBS, 
+                                mPlugin.mPackageName);
+                        mLibsExtracted = extractLibs();
+                    } finally {
+                        PluginTrace.end(PluginTrace.Phase.NATIVE_LIBS, mPlugin.mPackageName, trace);
+                    }
+                }
+                result = super.findLibrary(name);
+            } else {
+                result = super.findLibrary(name);
+                if (result != null && !mLibInfo.mEmbeded 
+                        && lastModified(new File(result)) != mPlugin.mApkTime) {
                     Log.w(TAG, "findLibrary found unmatch " + name + " -> " + result);
+                    result = null;
                 }
-                lock.release();
-                return null;
             }
-            Log.d(TAG, "findLibrary update " + name + " -> " + result);
-            // extract all so, for indirect load
-            extractLibs();
-            result = super.findLibrary(name);
+            // retry misses while libs not extracted
+            if (result != null || !mLibInfo.mExtractLibs || mLibsExtracted)
+                mLibraries.put(name, result == null ? "" : result);
+        } finally {
+            if (lock != null)
+                lock.release();
         }
-        lock.release();
         Log.d(TAG, "findLibrary " + name + " -> " + result);
         return result;
     }
@@ -102,7 +238,7 @@ public class PluginClassLoader extends DexClassLoader {
     // @Override
     public String getLdLibraryPath() {
         // prevent load direct which may load old library without update
-        if (!mLibInfo.mExtractLibs)
+        if (!mLibInfo.mExtractLibs || mLibsExtracted)
             return mLibInfo.mLibPath;
         StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         for (StackTraceElement stack : stackTrace) {
@@ -115,39 +251,74 @@ public class PluginClassLoader extends DexClassLoader {
         return mLibInfo.mLibPath;
     }
     
-    private void extractLibs() {
+    /*
+     * Compare crc and size of lib entries with manifest, extract changed ones
+     *   in parallel. Each lib is synced before renamed into place, manifest is
+     *   written after all and directory synced once.
+     *   Return false if any lib failed, to retry later.
+     */
+    private boolean extractLibs() {
         Log.d(TAG, "extractLibs " + mLibInfo.mAbi);
         try {
-            ZipFile zip = new ZipFile(mPlugin.mApkPath);
+            final ZipIndex zip = ZipIndex.open(mPlugin.mApkPath, mPlugin.mApkTime);
+            File libDir = new File(mLibInfo.mLibPath);
+            final ChecksumManifest manifest = ChecksumManifest.load(
+                    new File(libDir, Plugin.FILE_MANIFEST));
             String path = "lib/" + mLibInfo.mAbi + "/";
-            for (ZipEntry entry : Collections.list(zip.entries())) {
-                if (!entry.getName().startsWith(path))
+            List<String> names = new ArrayList<String>();
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+            for (final ZipIndex.Entry entry : zip.list(path)) {
+                final String name = entry.mName.substring(path.length());
+                final File dest = new File(libDir, name);
+                names.add(name);
+                if (manifest.matches(name, entry.mCrc, entry.mSize, dest))
                     continue;
-                String name = entry.getName().substring(path.length());
-                extractLib(zip, entry, new File(mLibInfo.mLibPath, name));
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        manifest.remove(name);
+                        extractLib(zip, entry, dest);
+                        manifest.put(name, entry.mCrc, entry.mSize);
+                        return true;
+                    }
+                });
             }
-            zip.close();
+            manifest.retain(names);
+            boolean success = true;
+            if (!tasks.isEmpty()) {
+                mLibraries.clear();
+                for (Boolean result : Workers.invokeAll(tasks)) {
+                    if (result == null)
+                        success = false;
+                }
+            }
+            manifest.save();
+            Files.syncDir(libDir);
+            return success;
         } catch (IOException e) {
             Log.w(TAG, "extractLibs", e);
+            return false;
         }
     }
 
-    private void extractLib(ZipFile zip, ZipEntry entry, File dest) throws IOException {
-        Log.d(TAG, "extractLib " + entry.getName());
-        InputStream in = zip.getInputStream(entry);
-        File file = File.createTempFile("xxx", "yyy", dest.getParentFile());
-        FileOutputStream out = new FileOutputStream(file);
-        byte buffer[] = new byte[4096];
-        int nRead = 0;
-        while ((nRead = in.read(buffer)) > 0) {
-            out.write(buffer, 0, nRead);
-        }
-        out.getFD().sync();
-        out.close();
-        in.close();
-        dest.delete();
-        file.renameTo(dest);
-        dest.setLastModified(mPlugin.mApkTime);
+    private void extractLib(final ZipIndex zip, final ZipIndex.Entry entry, File dest)
+            throws IOException {
+        Log.d(TAG, "extractLib " + entry.mName);
+        Files.atomicWrite(dest, new Files.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws IOException {
+                InputStream in = zip.open(entry);
+                try {
+                    byte buffer[] = new byte[65536];
+                    int nRead = 0;
+                    while ((nRead = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, nRead);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        });
     }
 
     private static long lastModified(File file) {
@@ -188,27 +359,19 @@ public class PluginClassLoader extends DexClassLoader {
         File apkPath = plugin.mApkPath;
         File cacheDir = plugin.mCacheDir;
         NativeLibraryInfo info = new NativeLibraryInfo();
-        ZipFile zip = null;
         List<String> libs = new ArrayList<String>();
         try {
-            zip = new ZipFile(apkPath);
-            for (ZipEntry entry : Collections.list(zip.entries())) {
-                if (!entry.getName().startsWith("lib/"))
-                    continue;
-                libs.add(entry.getName().substring(4));
-                String[] paths = entry.getName().split("/");
+            ZipIndex zip = ZipIndex.open(apkPath, plugin.mApkTime);
+            for (ZipIndex.Entry entry : zip.list("lib/")) {
+                libs.add(entry.mName.substring(4));
+                String[] paths = entry.mName.split("/");
                 if (info.mAbiList.isEmpty())
-                    info.mZipAligned = entry.getMethod() == ZipEntry.STORED;
+                    info.mZipAligned = entry.mMethod == ZipIndex.STORED;
                 if (!info.mAbiList.contains(paths[1]))
                     info.mAbiList.add(paths[1]);
             }
         } catch (IOException e) {
             Log.w(TAG, "getAbi", e);
-        } finally {
-            try {
-                zip.close();
-            } catch (IOException e) {
-            }
         }
         for (String abi : sAbiList) {
             if (info.mAbiList.contains(abi)) {
@@ -237,6 +400,7 @@ public class PluginClassLoader extends DexClassLoader {
                 libPath = new File(libPath, abiToArch(info.mAbi));
             }
             libPath.mkdirs();
+            libs.add(Plugin.FILE_MANIFEST);
             Files.cleanOthers(libPath, libs);
             info.mExtractLibs = true;
             info.mLibPath = libPath.getAbsolutePath();
@@ -4,12 +4,18 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
+import dx.android.util.system.ChecksumManifest;
 import dx.android.util.system.FileLock;
 import dx.android.util.system.Files;
+import dx.android.util.system.Workers;
 
 import android.content.Context;
 import android.content.res.AssetManager;
@@ -34,25 +40,62 @@ public class PluginContext extends ContextThemeWrapper {
     }
     
     void upgradeResources(File cacheDir) {
+        long trace = 0;
+        try {
+            trace = PluginTrace.begin(PluginTrace.Phase.IDMAP, mPlugin.mPackageName);
+            doUpgradeResources(cacheDir);
+        } finally {
+            PluginTrace.end(PluginTrace.Phase.IDMAP, mPlugin.mPackageName, trace);
+        }
+    }
+    
+    private void doUpgradeResources(File cacheDir) {
+        // plugins restored from index have no resources yet
+        PluginResources base = baseResources();
         File idmapDir = new File(cacheDir, Plugin.SUB_DIR_IDMAPS);
         if (!mPlugin.mOverlays.isEmpty()) {
             File lockFile = new File(cacheDir, Plugin.FILE_LOCK);
             FileLock lock = FileLock.lock(lockFile);
-            TargetResources targetResources = 
-                    new TargetResources(mResources);
-            idmapDir.mkdirs();
-            List<String> listKeep = new ArrayList<String>();
-            for (Plugin p : mPlugin.mOverlays) {
-                targetResources.addOverlay(idmapDir, 
-                        (OverlayResources) p.mContext.getResources());
-                listKeep.add(p.mPackageName + TargetResources.SUFFIX_IDMAP);
+            try {
+                final TargetResources targetResources = 
+                        new TargetResources(base);
+                idmapDir.mkdirs();
+                final ChecksumManifest manifest = ChecksumManifest.load(
+                        new File(idmapDir, Plugin.FILE_MANIFEST));
+                List<String> listKeep = new ArrayList<String>();
+                List<Callable<OverlayResources.Target>> tasks = 
+                        new ArrayList<Callable<OverlayResources.Target>>();
+                for (Plugin p : mPlugin.mOverlays) {
+                    final OverlayResources overlay = 
+                            (OverlayResources) p.mContext.getResources();
+                    final File idmap = new File(idmapDir, 
+                            p.mPackageName + TargetResources.SUFFIX_IDMAP);
+                    // checked or created in parallel, locked per idmap
+                    tasks.add(new Callable<OverlayResources.Target>() {
+                        @Override
+                        public OverlayResources.Target call() {
+                            return overlay.openTarget(targetResources, idmap, manifest);
+                        }
+                    });
+                    listKeep.add(idmap.getName());
+                }
+                List<OverlayResources.Target> targets = Workers.invokeAll(tasks);
+                for (int i = 0; i < targets.size(); ++i) {
+                    targetResources.addOverlay((OverlayResources) 
+                            mPlugin.mOverlays.get(i).mContext.getResources(), targets.get(i));
+                }
+                manifest.retain(listKeep);
+                manifest.save();
+                listKeep.add(Plugin.FILE_MANIFEST);
+                Files.cleanOthers(idmapDir, listKeep);
+                mResources = targetResources;
+                targetResources.applyOverlay(this, false);
+            } finally {
+                if (lock != null)
+                    lock.release();
             }
-            Files.cleanOthers(idmapDir, listKeep);
-            mResources = targetResources;
-            targetResources.applyOverlay(this, false);
-            lock.release();
         } else if (!mPlugin.mOverlayTargets.isEmpty()) {
-            mResources = new OverlayResources(mResources);
+            mResources = new OverlayResources(base);
             Files.rmdirs(idmapDir);
         } else {
             Files.rmdirs(idmapDir);
@@ -68,6 +111,67 @@ public class PluginContext extends ContextThemeWrapper {
     
     public void selectOverlays(String... overlays) {
         Log.d(TAG, "selectOverlays " + Arrays.toString(overlays));
+        selectOverlays(findOverlays(overlays));
+    }
+    
+    /*
+     * Overlays selected with prepareOverlays, commit to apply them
+     */
+    public static class PreparedOverlays {
+        
+        private final Map<TargetResources, TargetResources.Selection> mSelections;
+        private final FutureTask<Void> mPreload;
+        
+        PreparedOverlays(Map<TargetResources, TargetResources.Selection> selections, 
+                FutureTask<Void> preload) {
+            mSelections = selections;
+            mPreload = preload;
+        }
+        
+        /*
+         * True if resources of tracked views are preloaded
+         */
+        public boolean isReady() {
+            return mPreload.isDone();
+        }
+        
+        /*
+         * Swap selections, not wait for preload, views are restyled in batches
+         */
+        public void commit() {
+            for (Entry<TargetResources, TargetResources.Selection> e : mSelections.entrySet())
+                e.getKey().setSelection(e.getValue());
+        }
+    }
+    
+    /*
+     * Plan selection like selectOverlays, but not apply it,
+     *   overlay resources of tracked views are preloaded on worker thread.
+     *   Call on main thread, as tracked views are visited.
+     */
+    public PreparedOverlays prepareOverlays(String... overlays) {
+        Log.d(TAG, "prepareOverlays " + Arrays.toString(overlays));
+        Map<TargetResources, String[]> plan = planOverlays(findOverlays(overlays));
+        Map<TargetResources, TargetResources.Selection> selections = 
+                new LinkedHashMap<TargetResources, TargetResources.Selection>();
+        final List<Runnable> preloads = new ArrayList<Runnable>();
+        for (Entry<TargetResources, String[]> e : plan.entrySet()) {
+            TargetResources.Selection selection = e.getKey().makeSelection(e.getValue());
+            selections.put(e.getKey(), selection);
+            preloads.add(e.getKey().makePreload(selection));
+        }
+        FutureTask<Void> preload = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable r : preloads)
+                    r.run();
+            }
+        }, null);
+        Workers.pool().execute(preload);
+        return new PreparedOverlays(selections, preload);
+    }
+    
+    private List<Plugin> findOverlays(String... overlays) {
         Map<String, Plugin> overlays2 = new TreeMap<String, Plugin>();
         getOverlays(overlays2);
         List<Plugin> overlays3 = new ArrayList<Plugin>(overlays.length);
@@ -78,10 +182,17 @@ public class PluginContext extends ContextThemeWrapper {
                 overlays3.add(o2);
             }
         }
-        selectOverlays(overlays3);
+        return overlays3;
     }
     
     public void selectOverlays(List<Plugin> overlays) {
+        for (Entry<TargetResources, String[]> e : planOverlays(overlays).entrySet())
+            e.getKey().selectOverlays(e.getValue());
+    }
+    
+    // target resources -> overlays selected in it, in depend order
+    private Map<TargetResources, String[]> planOverlays(List<Plugin> overlays) {
+        Map<TargetResources, String[]> plan = new LinkedHashMap<TargetResources, String[]>();
         Map<Plugin, List<Plugin>> targets = new HashMap<Plugin, List<Plugin>>();
         while (!overlays.isEmpty()) {
             Plugin o = overlays.remove(0);
@@ -96,7 +207,7 @@ public class PluginContext extends ContextThemeWrapper {
                 if (!to.contains(o))
                     to.add(o);
             }
-            // can't handle cycle depends
+            // no cycle depends, rejected by PluginResolver
             for (Plugin od : o.mDepends) {
                 if (!overlays.contains(od)) {
                     Log.d(TAG, "selectOverlays: add depend " + od.getPackageName());
@@ -115,11 +226,11 @@ public class PluginContext extends ContextThemeWrapper {
                 String[] os = new String[to.size()];
                 for (int i = 0; i < to.size(); ++i)
                     os[i] = to.get(i).getPackageName();
-                ((TargetResources) c.mResources).selectOverlays(os);
+                plan.put((TargetResources) c.mResources, os);
             } else if (c.mResources instanceof TargetResources) {
-                ((TargetResources) c.mResources).selectOverlays();
+                plan.put((TargetResources) c.mResources, new String[0]);
             }
-            // can't handle cycle depends
+            // no cycle depends, rejected by PluginResolver
             for (Plugin td : t.mDepends) {
                 if (!overlays.contains(td)) {
                     Log.d(TAG, "selectOverlays: add depend " + td.getPackageName());
@@ -127,6 +238,7 @@ public class PluginContext extends ContextThemeWrapper {
                 }
             }
         }
+        return plan;
     }
     
     private void getOverlays(Map<String, Plugin> overlays) {
@@ -138,7 +250,7 @@ public class PluginContext extends ContextThemeWrapper {
                 Log.d(TAG, "getOverlays: add overlay " + o.getPackageName());
                 overlays.put(o.getPackageName(), o);
             }
-            // can't handle cycle depends
+            // no cycle depends, rejected by PluginResolver
             for (Plugin dd : d.mDepends) {
                 if (!depends.contains(dd)) {
                     Log.d(TAG, "getOverlays: add depend " + dd.getPackageName());
@@ -148,6 +260,10 @@ public class PluginContext extends ContextThemeWrapper {
         }
     }
     
+    Plugin getPlugin() {
+        return mPlugin;
+    }
+    
     @Override
     public String getPackageCodePath() {
         return mPlugin.mApkPath.toString();
@@ -165,11 +281,18 @@ public class PluginContext extends ContextThemeWrapper {
 
     @Override
     public AssetManager getAssets() {
-        return mResources.getAssets();
+        return getResources().getAssets();
     }
 
     @Override
     public Resources getResources() {
+        PluginResources resources = baseResources();
+        resources.ensureConfiguration();
+        return resources;
+    }
+    
+    // created on first use, package name may be restored after construct
+    private PluginResources baseResources() {
         if (mResources == null) {
             mResources = new PluginResources(getBaseContext().getResources(), 
                     mPlugin.mApkPath, mPlugin.mPackageName);
@@ -0,0 +1,167 @@
+package dx.android.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.util.Log;
+
+import dx.android.util.system.FileLock;
+import dx.android.util.system.Files;
+
+/*
+ * Metadata of imported plugin apks, saved in plugin cache dir.
+ *   Keyed by apk path, size and time, so only changed apks are parsed again.
+ *   Display strings are resolved with current locale, so locale is also part of key.
+ */
+class PluginIndex {
+
+    private static final String TAG = "PluginIndex";
+
+    private static final int MAGIC = 0x504c4958; // PLIX
+    private static final int VERSION = 2;
+
+    private File mFile;
+    private String mLocale;
+    private Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // entries used in this run, others are dropped when save
+    private Map<String, Entry> mUsed = new HashMap<String, Entry>();
+    private boolean mDirty;
+
+    private static class Entry {
+        String mPath;
+        long mSize;
+        long mTime;
+        Plugin.Status mStatus;
+        String mPackageName;
+        PluginInfo mInfo;
+    }
+
+    private PluginIndex(File file) {
+        mFile = file;
+        mLocale = Locale.getDefault().toString();
+    }
+
+    static PluginIndex load(File file) {
+        PluginIndex index = new PluginIndex(file);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !index.mLocale.equals(in.readUTF())) {
+                Log.d(TAG, "load: version or locale changed");
+                index.mDirty = true;
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                Entry e = new Entry();
+                e.mPath = in.readUTF();
+                e.mSize = in.readLong();
+                e.mTime = in.readLong();
+                e.mStatus = Plugin.Status.values()[in.readByte()];
+                e.mPackageName = in.readUTF();
+                e.mInfo = new PluginInfo();
+                e.mInfo.read(in);
+                index.mEntries.put(e.mPath, e);
+            }
+            Log.d(TAG, "load: " + count + " entries");
+        } catch (FileNotFoundException e) {
+            index.mDirty = true;
+        } catch (Exception e) {
+            Log.w(TAG, "load", e);
+            index.mEntries.clear();
+            index.mDirty = true;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+            }
+        }
+        return index;
+    }
+
+    synchronized boolean restore(Plugin plugin) {
+        String path = plugin.mApkPath.getAbsolutePath();
+        Entry e = mEntries.get(path);
+        if (e == null || e.mTime != plugin.mApkTime
+                || e.mSize != plugin.mApkPath.length()) {
+            return false;
+        }
+        mUsed.put(path, e);
+        plugin.mPackageName = e.mPackageName;
+        plugin.mInfo = e.mInfo;
+        plugin.mStatus = e.mStatus;
+        if (e.mStatus == Plugin.Status.IMPORTED)
+            plugin.mCacheDir = new File(plugin.mCacheDir, e.mPackageName);
+        return true;
+    }
+
+    synchronized void record(Plugin plugin) {
+        Entry e = new Entry();
+        e.mPath = plugin.mApkPath.getAbsolutePath();
+        e.mSize = plugin.mApkPath.length();
+        e.mTime = plugin.mApkTime;
+        e.mStatus = plugin.mStatus;
+        e.mPackageName = plugin.mPackageName;
+        e.mInfo = plugin.mInfo;
+        mUsed.put(e.mPath, e);
+        mDirty = true;
+    }
+
+    synchronized void save() {
+        save(false);
+    }
+
+    /*
+     * keepUnused: also keep entries not used in this run, for partial import
+     */
+    synchronized void save(boolean keepUnused) {
+        if (!mDirty && (keepUnused || mUsed.size() == mEntries.size()))
+            return;
+        final Map<String, Entry> entries = keepUnused
+                ? new HashMap<String, Entry>(mEntries) : new HashMap<String, Entry>();
+        entries.putAll(mUsed);
+        Log.d(TAG, "save: " + entries.size() + " entries");
+        FileLock lock = FileLock.lock(new File(mFile.getParentFile(), Plugin.FILE_LOCK));
+        try {
+            Files.atomicWrite(mFile, new Files.Content() {
+                @Override
+                public void writeTo(FileOutputStream fos) throws IOException {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(mLocale);
+                    out.writeInt(entries.size());
+                    for (Entry e : entries.values()) {
+                        out.writeUTF(e.mPath);
+                        out.writeLong(e.mSize);
+                        out.writeLong(e.mTime);
+                        out.writeByte(e.mStatus.ordinal());
+                        out.writeUTF(e.mPackageName);
+                        e.mInfo.write(out);
+                    }
+                    out.flush();
+                }
+            });
+            mEntries = entries;
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "save", e);
+        } finally {
+            if (lock != null)
+                lock.release();
+        }
+    }
+
+}
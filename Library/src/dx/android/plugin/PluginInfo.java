@@ -1,5 +1,9 @@
 package dx.android.plugin;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.util.Log;
@@ -17,6 +21,7 @@ public class PluginInfo {
     String[] mTemplates;
     String[] mDepends;
     String[] mOverlayTargets;
+    boolean mMainThread;
 
     PluginInfo() {
     }
@@ -53,6 +58,7 @@ public class PluginInfo {
                         mDescription = resources.getString(resDesc);
                     mThumbnail = infoXml.getAttributeResourceValue(nsAndroid, "thumbnail", 0);
                     mPluginClass = infoXml.getAttributeValue(null, "class");
+                    mMainThread = infoXml.getAttributeBooleanValue(null, "mainThread", false);
                     int resTemplate = infoXml.getAttributeResourceValue(null, "templates", 0);
                     if (resTemplate > 0)
                         mTemplates = resources.getStringArray(resTemplate);
@@ -73,4 +79,58 @@ public class PluginInfo {
         }
     }
 
+    void write(DataOutput out) throws IOException {
+        writeString(out, mName);
+        writeString(out, mAuthor);
+        writeString(out, mVersion);
+        writeString(out, mDescription);
+        out.writeInt(mThumbnail);
+        writeString(out, mPluginClass);
+        writeStrings(out, mTemplates);
+        writeStrings(out, mDepends);
+        writeStrings(out, mOverlayTargets);
+        out.writeBoolean(mMainThread);
+    }
+
+    void read(DataInput in) throws IOException {
+        mName = readString(in);
+        mAuthor = readString(in);
+        mVersion = readString(in);
+        mDescription = readString(in);
+        mThumbnail = in.readInt();
+        mPluginClass = readString(in);
+        mTemplates = readStrings(in);
+        mDepends = readStrings(in);
+        mOverlayTargets = readStrings(in);
+        mMainThread = in.readBoolean();
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeStrings(DataOutput out, String[] ss) throws IOException {
+        out.writeInt(ss == null ? -1 : ss.length);
+        if (ss != null) {
+            for (String s : ss)
+                writeString(out, s);
+        }
+    }
+
+    private static String[] readStrings(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0)
+            return null;
+        String[] ss = new String[n];
+        for (int i = 0; i < n; ++i)
+            ss[i] = readString(in);
+        return ss;
+    }
+
 }
@@ -5,26 +5,35 @@ import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
 import android.app.Application;
-import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import dx.android.util.system.Assets;
+import dx.android.util.system.CacheCollector;
+import dx.android.util.system.FileCopier;
 import dx.android.util.system.Files;
 import dx.android.util.system.Mount;
+import dx.android.util.system.Workers;
 
 public class PluginManager {
 
@@ -61,8 +70,15 @@ public class PluginManager {
     private Plugin mAppPlugin;
     
     private final Map<String, Plugin> mPlugins = new TreeMap<String, Plugin>();
+    
+    private ClassIndex mClassIndex;
+
+    private final CacheCollector mCacheCollector = new CacheCollector();
 
     private PluginComponentCallbacks mComponentCallbacks;
+    
+    private boolean mParallelImport;
+    private boolean mParallelStart;
 
     PluginManager(Context context) {
         Log.d(TAG, "<init> SDK " + Build.VERSION.SDK_INT);
@@ -74,6 +90,29 @@ public class PluginManager {
         }
     }
     
+    /*
+     * Parse plugin apks on worker threads, should be set before importPlugins
+     */
+    public void setParallelImport(boolean parallel) {
+        mParallelImport = parallel;
+    }
+    
+    /*
+     * Start plugins of same depend level on worker threads,
+     *   plugins with mainThread="true" in metadata still start on main thread
+     */
+    public void setParallelStart(boolean parallel) {
+        mParallelStart = parallel;
+    }
+
+    /*
+     * Read overlay idmaps with memory mapped java reader instead of native library,
+     *   affects overlays added after this call
+     */
+    public void setJavaIdmap(boolean java) {
+        OverlayResources.sJavaIdmap = java;
+    }
+
     public void importPlugins(File sysCache, File usbCache) {
         Log.d(TAG, "importPlugins");
         File[] dirs = new File[5];
@@ -116,34 +155,28 @@ public class PluginManager {
 
     public Runnable loadPlugins(boolean delay, Class<? extends PluginBase> ...templates) {
         Log.d(TAG, "loadPlugins");
-        final Map<String, Plugin> plugins = new TreeMap<String, Plugin>();
+        Map<String, Plugin> plugins = new TreeMap<String, Plugin>();
         for (Plugin info : mPlugins.values()) {
             if (info.check(templates)) {
                 Log.d(TAG, "loadPlugins: add " + info.mPackageName);
                 plugins.put(info.mPackageName, info);
             }
         }
-        Iterator<Plugin> iter = plugins.values().iterator();
-        while (iter.hasNext()) {
-            Plugin info = iter.next();
-            Log.d(TAG, "loadPlugins: check " + info .mPackageName);
-            if (!info.check(plugins))
-                iter.remove();
-        }
-        for (Plugin info : plugins.values()) {
-            Log.d(TAG, "loadPlugins: start " + info.mPackageName);
-            info.start(delay);
+        long trace = 0;
+        PluginResolver.Plan plan;
+        try {
+            trace = PluginTrace.begin(PluginTrace.Phase.RESOLVE, "");
+            plan = new PluginResolver(plugins).resolve(plugins.values());
+        } finally {
+            PluginTrace.end(PluginTrace.Phase.RESOLVE, "", trace);
         }
+        final List<List<Plugin>> levels = plan.mLevels;
+        startPlugins(levels, delay);
         if (delay) {
             return new Runnable() {
                 @Override
                 public void run() {
-                    for (Plugin info : plugins.values()) {
-                        if (info.mStatus == Plugin.Status.CHECKED) {
-                            Log.d(TAG, "loadPlugins: start delayed " + info.mPackageName);
-                            info.start(false);
-                        }
-                    }
+                    startPlugins(levels, false);
                     mComponentCallbacks.loadFinished();
                 }
             };
@@ -152,6 +185,99 @@ public class PluginManager {
         return null;
     }
     
+    private void startPlugins(List<List<Plugin>> levels, boolean delay) {
+        for (List<Plugin> level : levels) {
+            if (mParallelStart) {
+                startLevel(level, delay);
+                continue;
+            }
+            for (Plugin info : level) {
+                if (info.mStatus != Plugin.Status.CHECKED)
+                    continue;
+                Log.d(TAG, "loadPlugins: start " + info.mPackageName);
+                info.start(delay);
+            }
+        }
+    }
+    
+    // start plugins of one level at same time, wait all finish
+    private void startLevel(List<Plugin> level, final boolean delay) {
+        List<FutureTask<Boolean>> tasks = new ArrayList<FutureTask<Boolean>>();
+        List<Plugin> mains = new ArrayList<Plugin>();
+        for (final Plugin info : level) {
+            if (info.mStatus != Plugin.Status.CHECKED)
+                continue;
+            if (!checkDepends(info))
+                continue;
+            if (info.isMainThread()) {
+                mains.add(info);
+                continue;
+            }
+            Log.d(TAG, "loadPlugins: start parallel " + info.mPackageName);
+            FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return info.start(delay);
+                }
+            });
+            Workers.pool().execute(task);
+            tasks.add(task);
+        }
+        for (Plugin info : mains) {
+            Log.d(TAG, "loadPlugins: start on main thread " + info.mPackageName);
+            startOnMainThread(info, delay);
+        }
+        for (FutureTask<Boolean> task : tasks) {
+            // help run if not picked by pool
+            task.run();
+            try {
+                task.get();
+            } catch (Exception e) {
+                Log.w(TAG, "loadPlugins", e);
+            }
+        }
+    }
+    
+    // failed depend only cancel its own dependents
+    private boolean checkDepends(Plugin info) {
+        for (Plugin dep : info.mDepends) {
+            if (dep.mStatus == Plugin.Status.FAILED) {
+                Log.w(TAG, "loadPlugins: cancel " + info.mPackageName 
+                        + ", depend " + dep.mPackageName + " failed");
+                info.mStatus = Plugin.Status.FAILED;
+                return false;
+            }
+        }
+        for (Plugin oly : info.mOverlays) {
+            if (oly.mStatus == Plugin.Status.FAILED) {
+                Log.w(TAG, "loadPlugins: cancel " + info.mPackageName 
+                        + ", overlay " + oly.mPackageName + " failed");
+                info.mStatus = Plugin.Status.FAILED;
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void startOnMainThread(final Plugin info, final boolean delay) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            info.start(delay);
+            return;
+        }
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return info.start(delay);
+            }
+        });
+        new Handler(Looper.getMainLooper()).post(task);
+        try {
+            task.get();
+        } catch (Exception e) {
+            Log.w(TAG, "loadPlugins", e);
+        }
+    }
+    
     public void cleanPlugins() {
         cleanPlugins(false);
     }
@@ -176,6 +302,17 @@ public class PluginManager {
     public File getCacheDir() {
         return mPluginCache;
     }
+    
+    /*
+     * Cleans of cache dirs, done in background after load finished
+     */
+    CacheCollector getCacheCollector() {
+        return mCacheCollector;
+    }
+    
+    ClassIndex getClassIndex() {
+        return mClassIndex;
+    }
 
     public synchronized Plugin getPlugin(String packageName) {
         return mPlugins.get(packageName);
@@ -226,12 +363,20 @@ public class PluginManager {
     private void importPlugins(File[] dirs, File globalCacheDir) {
         Log.d(TAG, "importPlugins " + Arrays.toString(dirs));
         File cacheDir = mPluginCache;
-        final List<String> localKeeps = new ArrayList<String>();
-        final List<String> globalKeeps = globalCacheDir == null
-                ? null : new ArrayList<String>();
-        final List<String> overlayKeeps = new ArrayList<String>();
-        List<String> keeps = localKeeps;
-        for (File dir : dirs) {
+        final Set<String> localKeeps = new HashSet<String>();
+        final Set<String> globalKeeps = globalCacheDir == null
+                ? null : new HashSet<String>();
+        final Set<String> overlayKeeps = new HashSet<String>();
+        Set<String> keeps = localKeeps;
+        File registryDir = new File(mPluginCache, Plugin.SUB_DIR_REGISTRY);
+        // dirs not changed since last import, only import chosen plugins
+        PluginRegistry registry = PluginRegistry.load(registryDir, dirs);
+        boolean warm = registry != null;
+        if (!warm)
+            registry = new PluginRegistry(registryDir);
+        // in dir order, so first one wins when merge
+        List<Plugin> plugins = warm ? registry.getPlugins() : new ArrayList<Plugin>();
+        for (File dir : warm ? new File[0] : dirs) {
             if (dir == null) continue;
             // start use global cache dir
             if (dir.getParentFile().equals(mPluginCache))
@@ -246,29 +391,50 @@ public class PluginManager {
                 continue;
             }
             for (File file : files) {
-                Plugin p = null;
                 if (file.isDirectory()) {
                     File apk = new File(file, file.getName() + ".apk");
                     if (apk.isFile()) {
                         if (dir == cacheDir) // special keep
                             keeps.add(file.getName());
-                        p = importPlugin(apk, cacheDir, cacheDir == globalCacheDir);
+                        plugins.add(new Plugin(apk, cacheDir, cacheDir == globalCacheDir));
+                    } else {
+                        registry.addProbe(apk);
                     }
                 } else if (file.getName().endsWith(".apk")) {
-                    p = importPlugin(file, cacheDir, cacheDir == globalCacheDir);
-                }
-                if (p != null) {
-                    keeps.add(p.mPackageName);
-                    // overlay always use local cache dir
-                    if (p.mInfo.mOverlayTargets != null) {
-                        for (String t : p.mInfo.mOverlayTargets) {
-                            if (!overlayKeeps.contains(t))
-                                overlayKeeps.add(t);
-                        }
-                    }
+                    plugins.add(new Plugin(file, cacheDir, cacheDir == globalCacheDir));
                 }
             }
         }
+        if (!warm) {
+            for (Plugin p : plugins)
+                registry.addCandidate(p);
+        }
+        PluginIndex index = PluginIndex.load(new File(mPluginCache, Plugin.FILE_INDEX));
+        mClassIndex = ClassIndex.load(new File(mPluginCache, Plugin.FILE_CLASSES));
+        List<Boolean> results = mParallelImport
+                ? imptPluginsParallel(plugins, index) : imptPlugins(plugins, index);
+        // warm import only sees chosen ones, keep others
+        index.save(warm);
+        for (int i = 0; i < plugins.size(); ++i) {
+            Plugin p = plugins.get(i);
+            if (!Boolean.TRUE.equals(results.get(i)) || !addPlugin(p))
+                continue;
+            // warm plugins are chosen ones, registry is not saved then
+            if (!warm && mPlugins.get(p.mPackageName) == p)
+                registry.setChosen(i);
+            // shared plugins use global cache dir
+            if (p.mSharedCache)
+                globalKeeps.add(p.mPackageName);
+            else
+                localKeeps.add(p.mPackageName);
+            // overlay always use local cache dir
+            if (p.mInfo.mOverlayTargets != null) {
+                for (String t : p.mInfo.mOverlayTargets)
+                    overlayKeeps.add(t);
+            }
+        }
+        mClassIndex.build(mPlugins.values());
+        mClassIndex.save(warm);
         // import embed plugins at last
         for (Entry<Class<? extends PluginBase>, String[]> e : sEmbedPlugins.entrySet()) {
             Log.d(TAG, "importPlugins: embed plugin " + e.getKey());
@@ -283,53 +449,88 @@ public class PluginManager {
             plugin.impt(mContext);
             mPlugins.put(plugin.mPackageName, plugin);
         }
+        // nothing new in cache dirs since last clean
+        if (warm) {
+            Log.d(TAG, "importPlugins: warm from registry");
+            return;
+        }
         localKeeps.add(mAppPlugin.mPackageName);
         localKeeps.add(Plugin.FILE_LOCK);
+        localKeeps.add(Plugin.FILE_INDEX);
+        localKeeps.add(Plugin.FILE_CLASSES);
+        localKeeps.add(Plugin.SUB_DIR_REGISTRY);
         if (Build.VERSION.SDK_INT >= 26)
             localKeeps.add("oat");
         // overlay always use local cache dir
         for (String t : overlayKeeps) {
-            if (!localKeeps.contains(t) && globalKeeps.contains(t))
+            if (globalKeeps != null && globalKeeps.contains(t))
                 localKeeps.add(t);
         }
-        // clean unused content in cache dir
-        Files.clean(mPluginCache, new FilenameFilter() {
+        // clean unused content in cache dir, after load finished
+        mCacheCollector.clean(mPluginCache, new FilenameFilter() {
             @Override
             public boolean accept(File arg0, String arg1) {
                 return !arg1.endsWith(".apk") && !localKeeps.contains(arg1);
             }
-        });
+        }, new File(mPluginCache, Plugin.FILE_LOCK));
         if (globalCacheDir != null) {
             if (Build.VERSION.SDK_INT >= 26)
                 globalKeeps.add("oat");
-            Files.clean(globalCacheDir, new FilenameFilter() {
+            mCacheCollector.clean(globalCacheDir, new FilenameFilter() {
                 @Override
                 public boolean accept(File arg0, String arg1) {
                     return !arg1.endsWith(".apk") && !globalKeeps.contains(arg1);
                 }
-            });
+            }, new File(globalCacheDir, Plugin.FILE_LOCK));
         }
+        registry.save(dirs);
     }
     
-    private Plugin importPlugin(File file, File cacheDir, boolean shared) {
-        Log.d(TAG, "importPlugin: " + file);
-        Plugin plugin = new Plugin(file, cacheDir, shared);
-        boolean result = plugin.impt(mContext);
-        if (!result) {
-            return null;
+    private List<Boolean> imptPlugins(List<Plugin> plugins, PluginIndex index) {
+        List<Boolean> results = new ArrayList<Boolean>(plugins.size());
+        for (Plugin plugin : plugins) {
+            results.add(imptPlugin(plugin, index));
         }
+        return results;
+    }
+    
+    // parse apks on worker threads, results keep in input order
+    private List<Boolean> imptPluginsParallel(List<Plugin> plugins, 
+            final PluginIndex index) {
+        Log.d(TAG, "importPlugins: parallel " + plugins.size());
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(plugins.size());
+        for (final Plugin plugin : plugins) {
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return imptPlugin(plugin, index);
+                }
+            });
+        }
+        return Workers.invokeAll(tasks);
+    }
+    
+    private boolean imptPlugin(Plugin plugin, PluginIndex index) {
+        Log.d(TAG, "importPlugin: " + plugin.mApkPath);
+        boolean result = plugin.impt(mContext, index);
+        if (result && plugin.mStatus == Plugin.Status.IMPORTED)
+            mClassIndex.update(plugin);
+        return result;
+    }
+    
+    private boolean addPlugin(Plugin plugin) {
         if (plugin.mPackageName == null) {
-            return null;
+            return false;
         }
         String packageName = plugin.mPackageName;
         if (mPlugins.containsKey(packageName)) {
             Log.e(TAG, "importPlugin " + packageName 
                     + ": multiple version, old one is " + mPlugins.get(packageName).mApkPath);
-            return plugin;
+            return true;
         }
         // We never try load plugin with same name but different path
         mPlugins.put(packageName, plugin);
-        return plugin;
+        return true;
     }
 
     public Plugin updatePlugin(Plugin old, File file) throws PluginException {
@@ -363,7 +564,8 @@ public class PluginManager {
             throw new PluginException(info, "not stop old");
         }
         try {
-            result = info.check(mPlugins);
+            new PluginResolver(mPlugins).resolve(Collections.singletonList(info));
+            result = info.mStatus == Plugin.Status.CHECKED;
             if (!result) {
                 throw new PluginException(info, "check failed");
             }
@@ -379,33 +581,82 @@ public class PluginManager {
             }
         }
     }
-    private void copyFromUsb(File usbCache, File dstPath) {
+    /*
+     * Copy apks from usb volumes, newest one wins if on many volumes.
+     *   Volumes are copied in parallel, apks on one volume one by one.
+     */
+    private void copyFromUsb(File usbCache, final File dstPath) {
         Log.d(TAG, "copyFromUsb");
         try {
             dstPath.mkdirs();
             List<File> paths = Mount.getMountPaths(mContext, usbCache);
+            Map<String, File> sources = new HashMap<String, File>();
             for (File dir : paths) {
-                if (!dir.isDirectory()) continue;
+                File[] files = dir.listFiles();
+                if (files == null) continue;
                 Log.d(TAG, "copyFromUsb list directory " + dir.getAbsolutePath());
-                for (File file : dir.listFiles()) {
-                    if (!file.isFile() || !file.getName().endsWith(".apk"))
+                for (File file : files) {
+                    if (!file.getName().endsWith(".apk") || !file.isFile())
+                        continue;
+                    File old = sources.get(file.getName());
+                    if (old == null || old.lastModified() < file.lastModified())
+                        sources.put(file.getName(), file);
+                }
+            }
+            Set<String> copies = new HashSet<String>();
+            Map<File, List<File>> volumes = new LinkedHashMap<File, List<File>>();
+            for (File file : sources.values()) {
+                File dst = new File(dstPath, file.getName());
+                if (dst.isFile()) {
+                    if (FileCopier.isSame(file, dst)) {
+                        Log.d(TAG, "copyFromUsb skip same " + file);
+                        continue;
+                    }
+                    // not downgrade with stale volume
+                    if (dst.lastModified() >= file.lastModified()) {
+                        Log.d(TAG, "copyFromUsb skip old " + file);
                         continue;
-                    Log.d(TAG, "copyFromUsb check file " + file.getName());
-                    File dst = new File(dstPath, file.getName());
-                    if (dst.isFile()) {
-                        if (dst.lastModified() < file.lastModified()) {
-                            Log.d(TAG, "copyFromUsb update ");
-                            dst.delete();
-                        } else {
-                            Log.d(TAG, "copyFromUsb skip old");
-                            continue;
-                        }
-                    } else {
-                        Log.d(TAG, "copyFromUsb new");
                     }
-                    Files.copyFile(file, dst);
+                }
+                List<File> files = volumes.get(file.getParentFile());
+                if (files == null) {
+                    files = new ArrayList<File>();
+                    volumes.put(file.getParentFile(), files);
+                }
+                files.add(file);
+                copies.add(file.getName());
+            }
+            // parts not resumed now, apk is gone, same or newer in place
+            File[] parts = dstPath.listFiles();
+            if (parts != null) {
+                for (File part : parts) {
+                    String name = part.getName();
+                    String apk = null;
+                    if (name.endsWith(FileCopier.SUFFIX_JOURNAL))
+                        apk = name.substring(0, name.length() - FileCopier.SUFFIX_JOURNAL.length());
+                    else if (name.endsWith(FileCopier.SUFFIX_PART))
+                        apk = name.substring(0, name.length() - FileCopier.SUFFIX_PART.length());
+                    if (apk != null && !copies.contains(apk))
+                        FileCopier.discard(new File(dstPath, apk));
                 }
             }
+            if (volumes.isEmpty())
+                return;
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+            for (final List<File> files : volumes.values()) {
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (File file : files) {
+                            Log.d(TAG, "copyFromUsb copy " + file);
+                            FileCopier.copy(file, new File(dstPath, file.getName()));
+                        }
+                        return true;
+                    }
+                });
+            }
+            Workers.invokeAll(tasks);
+            Files.syncDir(dstPath);
         } catch (Exception e) {
             Log.w(TAG, "copyFromUsb", e);
         }
@@ -415,7 +666,7 @@ public class PluginManager {
         Assets.extractAll(mContext, "plugins", dstPath, lockFile);
     }
     
-    private class PluginComponentCallbacks implements ComponentCallbacks {
+    private class PluginComponentCallbacks implements ComponentCallbacks2 {
         
         private boolean mLoadFinish;
         private Configuration mConfiguration;
@@ -427,10 +678,8 @@ public class PluginManager {
                 return;
             }
             mConfiguration = null;
-            for (Plugin plugin : mPlugins.values()) {
-                if (plugin.mStatus == Plugin.Status.STARTED)
-                    plugin.mContext.getResources().updateConfiguration(newConfig, null);
-            }
+            // plugin resources are updated lazily on next access
+            PluginResources.postConfiguration(newConfig);
         }
 
         public void loadFinished() {
@@ -440,12 +689,19 @@ public class PluginManager {
                     mLoadFinish = true;
                     if (mConfiguration != null)
                         onConfigurationChanged(mConfiguration);
+                    mCacheCollector.start();
                 }
             });
         }
 
         @Override
         public void onLowMemory() {
+            OverlayCache.trimMemory(TRIM_MEMORY_COMPLETE);
+        }
+        
+        @Override
+        public void onTrimMemory(int level) {
+            OverlayCache.trimMemory(level);
         }
         
     }
@@ -0,0 +1,225 @@
+package dx.android.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import dx.android.util.system.FileLock;
+import dx.android.util.system.Files;
+
+/*
+ * Snapshot of plugin directories scan, saved after a full import.
+ *   Valid if plugin dirs are not changed (by modify time), no apk
+ *   appears in scanned sub dirs, and all found apks have same size and time.
+ *   Then only chosen apks (first one of each package) are imported again,
+ *   cache dirs are not cleaned, as nothing new is put in.
+ *   Saved in own sub dir, so saving it not change time of plugin cache dir.
+ */
+class PluginRegistry {
+
+    private static final String TAG = "PluginRegistry";
+
+    private static final int MAGIC = 0x50524753; // PRGS
+    private static final int VERSION = 1;
+
+    private static final String FILE_SNAPSHOT = "snapshot";
+
+    private static class Candidate {
+        String mApk;
+        String mCacheDir;
+        boolean mShared;
+        boolean mChosen;
+        long mSize;
+        long mTime;
+    }
+
+    private File mDir;
+    private List<String> mDirs = new ArrayList<String>();
+    private List<Long> mDirTimes = new ArrayList<Long>();
+    private List<Candidate> mCandidates = new ArrayList<Candidate>();
+    // apks not exists in scanned sub dirs
+    private List<String> mProbes = new ArrayList<String>();
+
+    /*
+     * dir: directory to save snapshot in
+     */
+    PluginRegistry(File dir) {
+        mDir = dir;
+    }
+
+    /*
+     * Load snapshot, return null if not exists or not valid with dirs
+     */
+    static PluginRegistry load(File dir, File[] dirs) {
+        PluginRegistry registry = new PluginRegistry(dir);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(dir, FILE_SNAPSHOT))));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                registry.mDirs.add(in.readUTF());
+                registry.mDirTimes.add(in.readLong());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                Candidate c = new Candidate();
+                c.mApk = in.readUTF();
+                c.mCacheDir = in.readUTF();
+                c.mShared = in.readBoolean();
+                c.mChosen = in.readBoolean();
+                c.mSize = in.readLong();
+                c.mTime = in.readLong();
+                registry.mCandidates.add(c);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; ++i)
+                registry.mProbes.add(in.readUTF());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            Log.w(TAG, "load", e);
+            return null;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+            }
+        }
+        if (!registry.isValid(dirs))
+            return null;
+        Log.d(TAG, "load: " + registry.mCandidates.size() + " candidates");
+        return registry;
+    }
+
+    private boolean isValid(File[] dirs) {
+        if (!mDirs.equals(dirPaths(dirs))) {
+            Log.d(TAG, "isValid: dirs changed");
+            return false;
+        }
+        for (int i = 0; i < dirs.length; ++i) {
+            if (dirs[i] != null && dirs[i].lastModified() != mDirTimes.get(i)) {
+                Log.d(TAG, "isValid: dir modified " + dirs[i]);
+                return false;
+            }
+        }
+        for (String probe : mProbes) {
+            if (new File(probe).isFile()) {
+                Log.d(TAG, "isValid: new apk " + probe);
+                return false;
+            }
+        }
+        for (Candidate c : mCandidates) {
+            File apk = new File(c.mApk);
+            if (apk.length() != c.mSize || apk.lastModified() != c.mTime) {
+                Log.d(TAG, "isValid: apk modified " + apk);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Chosen plugins, in scan order, not imported
+     */
+    List<Plugin> getPlugins() {
+        List<Plugin> plugins = new ArrayList<Plugin>();
+        for (Candidate c : mCandidates) {
+            if (c.mChosen)
+                plugins.add(new Plugin(new File(c.mApk), new File(c.mCacheDir), c.mShared));
+        }
+        return plugins;
+    }
+
+    void addProbe(File apk) {
+        mProbes.add(apk.getAbsolutePath());
+    }
+
+    /*
+     * Add plugin found in scan, before it is imported
+     */
+    void addCandidate(Plugin plugin) {
+        Candidate c = new Candidate();
+        c.mApk = plugin.mApkPath.getAbsolutePath();
+        c.mCacheDir = plugin.mCacheDir.getAbsolutePath();
+        c.mShared = plugin.mSharedCache;
+        c.mSize = plugin.mApkPath.length();
+        c.mTime = plugin.mApkPath.lastModified();
+        mCandidates.add(c);
+    }
+
+    /*
+     * Mark candidate of index (in add order) as chosen for its package
+     */
+    void setChosen(int index) {
+        mCandidates.get(index).mChosen = true;
+    }
+
+    /*
+     * Save after cache dirs cleaned, time of dirs are taken here
+     */
+    void save(File[] dirs) {
+        // before taking time, as it may be first created in plugin cache dir
+        mDir.mkdirs();
+        mDirs = dirPaths(dirs);
+        mDirTimes.clear();
+        for (File dir : dirs)
+            mDirTimes.add(dir == null ? 0 : dir.lastModified());
+        FileLock lock = FileLock.lock(new File(mDir.getParentFile(), Plugin.FILE_LOCK));
+        try {
+            Files.atomicWrite(new File(mDir, FILE_SNAPSHOT), new Files.Content() {
+                @Override
+                public void writeTo(FileOutputStream fos) throws IOException {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(mDirs.size());
+                    for (int i = 0; i < mDirs.size(); ++i) {
+                        out.writeUTF(mDirs.get(i));
+                        out.writeLong(mDirTimes.get(i));
+                    }
+                    out.writeInt(mCandidates.size());
+                    for (Candidate c : mCandidates) {
+                        out.writeUTF(c.mApk);
+                        out.writeUTF(c.mCacheDir);
+                        out.writeBoolean(c.mShared);
+                        out.writeBoolean(c.mChosen);
+                        out.writeLong(c.mSize);
+                        out.writeLong(c.mTime);
+                    }
+                    out.writeInt(mProbes.size());
+                    for (String probe : mProbes)
+                        out.writeUTF(probe);
+                    out.flush();
+                }
+            });
+            Log.d(TAG, "save: " + mCandidates.size() + " candidates");
+        } catch (IOException e) {
+            Log.w(TAG, "save", e);
+        } finally {
+            if (lock != null)
+                lock.release();
+        }
+    }
+
+    private static List<String> dirPaths(File[] dirs) {
+        List<String> paths = new ArrayList<String>();
+        for (File dir : dirs)
+            paths.add(dir == null ? "" : dir.getAbsolutePath());
+        return paths;
+    }
+
+}
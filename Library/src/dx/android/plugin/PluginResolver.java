@@ -0,0 +1,292 @@
+package dx.android.plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * Resolve depends and overlay targets of plugins once for the whole graph.
+ *   Sort in topological order (Kahn), group plugins into levels,
+ *   plugins in one level don't depend on each other.
+ */
+class PluginResolver {
+
+    private static final String TAG = "PluginResolver";
+
+    static class Problem {
+
+        enum Kind {
+            MISSING,            // strong depend not found
+            MISSING_WEAK,       // weak depend ("?" prefixed) not found, not failure
+            OVERLAY_MISMATCH,   // overlay depend on normal plugin, or reverse
+            DEPEND_FAILED,      // depend failed in import, check or resolve
+            CYCLE,              // in or blocked by depend cycle
+        }
+
+        final Kind mKind;
+        final Plugin mPlugin;
+        final String mDepend;
+
+        Problem(Kind kind, Plugin plugin, String depend) {
+            mKind = kind;
+            mPlugin = plugin;
+            mDepend = depend;
+        }
+
+        boolean isFatal() {
+            return mKind != Kind.MISSING_WEAK;
+        }
+
+        @Override
+        public String toString() {
+            return mPlugin.mPackageName + ": " + mKind + " " + mDepend;
+        }
+    }
+
+    static class Plan {
+
+        // start order, depends and overlays always in previous levels
+        final List<List<Plugin>> mLevels = new ArrayList<List<Plugin>>();
+        final List<Problem> mProblems = new ArrayList<Problem>();
+
+        List<Plugin> getPlugins() {
+            List<Plugin> plugins = new ArrayList<Plugin>();
+            for (List<Plugin> level : mLevels)
+                plugins.addAll(level);
+            return plugins;
+        }
+    }
+
+    private static class Node {
+        final Plugin mPlugin;
+        final List<Plugin> mDepends = new ArrayList<Plugin>();
+        // depend edges, failure pass along
+        final List<Node> mDependents = new ArrayList<Node>();
+        // order only edges, overlay start before target
+        final List<Node> mTargets = new ArrayList<Node>();
+        // not visited depend edges
+        int mInDegree;
+        // not visited order edges, never cause failure
+        int mOrderDegree;
+        int mLevel;
+        boolean mFailed;
+        boolean mVisited;
+        Node(Plugin plugin) {
+            mPlugin = plugin;
+        }
+    }
+
+    private static final Comparator<Plugin> sNameComparator = new Comparator<Plugin>() {
+        @Override
+        public int compare(Plugin lhs, Plugin rhs) {
+            return lhs.mPackageName.compareTo(rhs.mPackageName);
+        }
+    };
+
+    private final Map<String, Plugin> mPlugins;
+    private final Map<Plugin, Node> mNodes = new HashMap<Plugin, Node>();
+    private final List<Node> mNodeList = new ArrayList<Node>();
+
+    /*
+     * plugins: all plugins that depends are looked up in
+     */
+    PluginResolver(Map<String, Plugin> plugins) {
+        mPlugins = plugins;
+    }
+
+    /*
+     * Resolve roots and their imported depends,
+     *   status of resolved plugins are changed to CHECKED or FAILED.
+     */
+    Plan resolve(Collection<Plugin> roots) {
+        Plan plan = new Plan();
+        collect(roots);
+        for (int i = 0; i < mNodeList.size(); ++i)
+            link(mNodeList.get(i), plan);
+        List<Node> sorted = sort(plan);
+        for (Node n : sorted) {
+            if (n.mFailed) {
+                n.mPlugin.mStatus = Plugin.Status.FAILED;
+                continue;
+            }
+            apply(n);
+            while (plan.mLevels.size() <= n.mLevel)
+                plan.mLevels.add(new ArrayList<Plugin>());
+            plan.mLevels.get(n.mLevel).add(n.mPlugin);
+        }
+        for (List<Plugin> level : plan.mLevels)
+            Collections.sort(level, sNameComparator);
+        for (Problem p : plan.mProblems)
+            Log.w(TAG, "resolve: " + p);
+        return plan;
+    }
+
+    // collect roots and imported depends as nodes
+    private void collect(Collection<Plugin> roots) {
+        for (Plugin plugin : roots)
+            addNode(plugin);
+        for (int i = 0; i < mNodeList.size(); ++i) {
+            PluginInfo info = mNodeList.get(i).mPlugin.mInfo;
+            if (info.mDepends == null)
+                continue;
+            for (String dep : info.mDepends) {
+                Plugin depend = mPlugins.get(dep.startsWith("?") ? dep.substring(1) : dep);
+                if (depend != null)
+                    addNode(depend);
+            }
+        }
+    }
+
+    private void addNode(Plugin plugin) {
+        if (plugin.mStatus != Plugin.Status.IMPORTED || mNodes.containsKey(plugin))
+            return;
+        Node node = new Node(plugin);
+        mNodes.put(plugin, node);
+        mNodeList.add(node);
+    }
+
+    private void link(Node node, Plan plan) {
+        Plugin plugin = node.mPlugin;
+        PluginInfo info = plugin.mInfo;
+        if (info.mDepends != null) {
+            for (String dep : info.mDepends) {
+                boolean weak = false;
+                if (dep.startsWith("?")) {
+                    weak = true;
+                    dep = dep.substring(1);
+                }
+                Plugin depend = mPlugins.get(dep);
+                if (depend == null) {
+                    if (weak) {
+                        plan.mProblems.add(new Problem(
+                                Problem.Kind.MISSING_WEAK, plugin, dep));
+                        continue;
+                    }
+                    fail(node, Problem.Kind.MISSING, dep, plan);
+                    continue;
+                }
+                if ((info.mOverlayTargets == null) !=
+                        (depend.mInfo.mOverlayTargets == null)) {
+                    fail(node, Problem.Kind.OVERLAY_MISMATCH, dep, plan);
+                    continue;
+                }
+                Node d = mNodes.get(depend);
+                if (d != null) {
+                    d.mDependents.add(node);
+                    ++node.mInDegree;
+                } else if (depend.mStatus != Plugin.Status.CHECKED
+                        && depend.mStatus != Plugin.Status.STARTED) {
+                    fail(node, Problem.Kind.DEPEND_FAILED, dep, plan);
+                    continue;
+                }
+                node.mDepends.add(depend);
+            }
+        }
+        if (info.mOverlayTargets != null) {
+            for (String tgt : info.mOverlayTargets) {
+                Plugin target = mPlugins.get(tgt);
+                Node t = target == null ? null : mNodes.get(target);
+                if (t != null && t != node) {
+                    node.mTargets.add(t);
+                    ++t.mOrderDegree;
+                }
+            }
+        }
+    }
+
+    private void fail(Node node, Problem.Kind kind, String dep, Plan plan) {
+        plan.mProblems.add(new Problem(kind, node.mPlugin, dep));
+        node.mFailed = true;
+    }
+
+    // Kahn's algorithm, level is longest path from sources
+    private List<Node> sort(Plan plan) {
+        List<Node> sorted = new ArrayList<Node>(mNodeList.size());
+        ArrayDeque<Node> queue = new ArrayDeque<Node>();
+        for (Node n : mNodeList) {
+            if (n.mInDegree == 0 && n.mOrderDegree == 0)
+                queue.add(n);
+        }
+        while (true) {
+            drain(queue, sorted, plan);
+            // blocked only by order edges, from overlays in cycle, start anyway
+            for (Node n : mNodeList) {
+                if (!n.mVisited && n.mInDegree == 0) {
+                    n.mOrderDegree = 0;
+                    queue.add(n);
+                }
+            }
+            if (queue.isEmpty())
+                break;
+        }
+        // left nodes are in cycle, or depend on cycle
+        for (Node n : mNodeList) {
+            if (n.mVisited)
+                continue;
+            String dep = null;
+            for (Plugin d : n.mDepends) {
+                Node dn = mNodes.get(d);
+                if (dn != null && !dn.mVisited) {
+                    dep = d.mPackageName;
+                    break;
+                }
+            }
+            fail(n, Problem.Kind.CYCLE, dep, plan);
+            sorted.add(n);
+        }
+        return sorted;
+    }
+
+    private void drain(ArrayDeque<Node> queue, List<Node> sorted, Plan plan) {
+        while (!queue.isEmpty()) {
+            Node n = queue.poll();
+            n.mVisited = true;
+            sorted.add(n);
+            for (Node d : n.mDependents) {
+                if (n.mFailed && !d.mFailed)
+                    fail(d, Problem.Kind.DEPEND_FAILED, n.mPlugin.mPackageName, plan);
+                raise(n, d);
+                if (--d.mInDegree == 0 && d.mOrderDegree == 0)
+                    queue.add(d);
+            }
+            for (Node t : n.mTargets) {
+                // released target already placed, keep its level
+                if (t.mVisited)
+                    continue;
+                raise(n, t);
+                if (--t.mOrderDegree == 0 && t.mInDegree == 0)
+                    queue.add(t);
+            }
+        }
+    }
+
+    private static void raise(Node from, Node to) {
+        if (to.mLevel <= from.mLevel)
+            to.mLevel = from.mLevel + 1;
+    }
+
+    private void apply(Node node) {
+        Plugin plugin = node.mPlugin;
+        if (plugin.mInfo.mDepends != null)
+            plugin.mDepends = node.mDepends;
+        if (plugin.mInfo.mOverlayTargets != null) {
+            plugin.mOverlayTargets = new ArrayList<Plugin>();
+            for (String tgt : plugin.mInfo.mOverlayTargets) {
+                Plugin target = mPlugins.get(tgt);
+                if (target != null) {
+                    plugin.mOverlayTargets.add(target);
+                    target.addOverlay(plugin);
+                }
+            }
+        }
+        plugin.mStatus = Plugin.Status.CHECKED;
+    }
+
+}
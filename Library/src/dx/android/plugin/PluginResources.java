@@ -3,16 +3,28 @@ package dx.android.plugin;
 import java.io.File;
 
 import dx.android.util.reflect.ClassWrapper;
-import dx.android.util.reflect.ObjectWrapper;
+import dx.android.util.reflect.MethodAccessor;
 
 import android.content.res.AssetManager;
+import android.content.res.ColorStateList;
+import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.content.res.XmlResourceParser;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.util.TypedValue;
 
 public class PluginResources extends Resources {
 
     protected File mPath;
     protected String mPackageName;
     protected Resources mBase;
+    
+    // configuration changes are counted, and applied on next access
+    private static volatile Configuration sConfiguration;
+    private static volatile int sConfigGeneration;
+    private volatile int mConfigGeneration = sConfigGeneration;
 
     public PluginResources(Resources base, File path, String pkgName, int unused) {
         super(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration());
@@ -35,9 +47,156 @@ public class PluginResources extends Resources {
         mBase = base.mBase;
     }
     
+    /*
+     * Record configuration change, resources are updated in ensureConfiguration
+     */
+    static synchronized void postConfiguration(Configuration config) {
+        sConfiguration = new Configuration(config);
+        ++sConfigGeneration;
+    }
+    
+    /*
+     * Apply configuration posted after last call, cheap if nothing changed
+     */
+    void ensureConfiguration() {
+        int generation = sConfigGeneration;
+        if (mConfigGeneration == generation)
+            return;
+        synchronized (this) {
+            if (mConfigGeneration == generation)
+                return;
+            mConfigGeneration = generation;
+            updateConfiguration(sConfiguration, null);
+        }
+    }
+    
+    /*
+     * Entry points that resources are loaded through, catch up configuration
+     *   first, for views and inflaters holding this resources. Newer platforms
+     *   not load through getValue in common getters, so they are also here.
+     *   Themes share asset manager, updated by any of these calls.
+     */
+    
+    @Override
+    public void getValue(int id, TypedValue outValue, boolean resolveRefs)
+            throws NotFoundException {
+        ensureConfiguration();
+        super.getValue(id, outValue, resolveRefs);
+    }
+    
+    @Override
+    public void getValueForDensity(int id, int density, TypedValue outValue,
+            boolean resolveRefs) throws NotFoundException {
+        ensureConfiguration();
+        super.getValueForDensity(id, density, outValue, resolveRefs);
+    }
+    
+    @Override
+    public Drawable getDrawable(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getDrawable(id);
+    }
+    
+    @Override
+    public Drawable getDrawable(int id, Theme theme) throws NotFoundException {
+        ensureConfiguration();
+        return super.getDrawable(id, theme);
+    }
+    
+    @Override
+    public Drawable getDrawableForDensity(int id, int density) throws NotFoundException {
+        ensureConfiguration();
+        return super.getDrawableForDensity(id, density);
+    }
+    
+    @Override
+    public Drawable getDrawableForDensity(int id, int density, Theme theme) {
+        ensureConfiguration();
+        return super.getDrawableForDensity(id, density, theme);
+    }
+    
+    @Override
+    public TypedArray obtainAttributes(AttributeSet set, int[] attrs) {
+        ensureConfiguration();
+        return super.obtainAttributes(set, attrs);
+    }
+    
+    @Override
+    public CharSequence getText(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getText(id);
+    }
+    
+    @Override
+    public String getString(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getString(id);
+    }
+    
+    @Override
+    public float getDimension(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getDimension(id);
+    }
+    
+    @Override
+    public int getDimensionPixelSize(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getDimensionPixelSize(id);
+    }
+    
+    @Override
+    public int getDimensionPixelOffset(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getDimensionPixelOffset(id);
+    }
+    
+    @SuppressWarnings("deprecation")
+    @Override
+    public int getColor(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getColor(id);
+    }
+    
+    @SuppressWarnings("deprecation")
+    @Override
+    public ColorStateList getColorStateList(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getColorStateList(id);
+    }
+    
+    @Override
+    public int getColor(int id, Theme theme) throws NotFoundException {
+        ensureConfiguration();
+        return super.getColor(id, theme);
+    }
+    
+    @Override
+    public ColorStateList getColorStateList(int id, Theme theme) throws NotFoundException {
+        ensureConfiguration();
+        return super.getColorStateList(id, theme);
+    }
+    
+    @Override
+    public XmlResourceParser getLayout(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getLayout(id);
+    }
+    
+    @Override
+    public XmlResourceParser getXml(int id) throws NotFoundException {
+        ensureConfiguration();
+        return super.getXml(id);
+    }
+    
+    private static final MethodAccessor<AssetManager> sNewAssetManager = 
+            ClassWrapper.wrap(AssetManager.class).bindConstructor();
+    private static final MethodAccessor<Integer> sAddAssetPath = 
+            ClassWrapper.wrap(AssetManager.class).bindMethod("addAssetPath", String.class);
+    
     private static AssetManager createAssetManager(File path) {
-        AssetManager assets = ClassWrapper.wrap(AssetManager.class).newInstance();
-        ObjectWrapper.wrap(assets).invoke("addAssetPath", path.getAbsolutePath());
+        AssetManager assets = sNewAssetManager.newInstance();
+        sAddAssetPath.invoke(assets, path.getAbsolutePath());
         return assets;
     }
 
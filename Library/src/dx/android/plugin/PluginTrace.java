@@ -0,0 +1,166 @@
+package dx.android.plugin;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+/*
+ * Timing of plugin lifecycle phases and counters of hot paths.
+ *   Disabled by default, then every call is one volatile read.
+ *   Phases can also be exported as android.os.Trace sections (API 18+).
+ */
+public class PluginTrace {
+
+    public enum Phase {
+        IMPORT,         // Plugin.impt, include parse
+        PARSE,          // read package and plugin metadata from apk
+        CHECK,          // template check
+        RESOLVE,        // resolve depends of all plugins, package is ""
+        CLASSLOADER,    // create class loader, include dexopt
+        NATIVE_LIBS,    // extract native libraries
+        IDMAP,          // open or create overlay idmaps
+        START,          // PluginBase.start
+    }
+
+    public enum Counter {
+        CLASS_LOAD,         // classes found in plugin class loaders
+        CLASS_NOT_FOUND,
+        LIBRARY_MISS,       // findLibrary not resolved from cache
+        OVERLAY_MAP_HIT,    // resource id found in overlay id table
+        OVERLAY_MAP_MISS,   // resource id mapped through idmaps
+    }
+
+    public interface Listener {
+        /*
+         * Called on thread of the phase, should be fast
+         */
+        void onPhase(String pkgName, Phase phase, long nanos);
+    }
+
+    private static final String TAG = "PluginTrace";
+
+    // limit of android.os.Trace section name
+    private static final int MAX_SECTION_LENGTH = 127;
+
+    private static volatile boolean sEnabled;
+    private static boolean sSystrace;
+    private static Listener sListener;
+
+    private static final AtomicLongArray sCounters =
+            new AtomicLongArray(Counter.values().length);
+    // package name -> nanos of phases
+    private static final Map<String, long[]> sTimings = new HashMap<String, long[]>();
+
+    /*
+     * listener: may be null, timings are still recorded
+     * systrace: export phases as trace sections
+     */
+    public static synchronized void enable(Listener listener, boolean systrace) {
+        sListener = listener;
+        sSystrace = systrace && Build.VERSION.SDK_INT >= 18;
+        sEnabled = true;
+    }
+
+    public static synchronized void disable() {
+        sEnabled = false;
+        sListener = null;
+        sSystrace = false;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static long getCounter(Counter counter) {
+        return sCounters.get(counter.ordinal());
+    }
+
+    /*
+     * Total nanos of phase of plugin, 0 if not recorded
+     */
+    public static long getTiming(String pkgName, Phase phase) {
+        synchronized (sTimings) {
+            long[] timings = sTimings.get(pkgName);
+            return timings == null ? 0 : timings[phase.ordinal()];
+        }
+    }
+
+    public static Map<String, long[]> getTimings() {
+        Map<String, long[]> timings = new HashMap<String, long[]>();
+        synchronized (sTimings) {
+            for (Map.Entry<String, long[]> e : sTimings.entrySet())
+                timings.put(e.getKey(), e.getValue().clone());
+        }
+        return timings;
+    }
+
+    public static void reset() {
+        for (int i = 0; i < sCounters.length(); ++i)
+            sCounters.set(i, 0);
+        synchronized (sTimings) {
+            sTimings.clear();
+        }
+    }
+
+    /*
+     * Begin phase, name is for trace section only, not formatted if disabled.
+     *   Return start time to pass to end, 0 if disabled,
+     *   low bit is set if trace section is begun.
+     *   Never throws, call in try and end in its finally block, on same thread.
+     */
+    static long begin(Phase phase, Object name) {
+        if (!sEnabled)
+            return 0;
+        long start = System.nanoTime() & ~1L;
+        if (start == 0)
+            start = 2;
+        if (sSystrace) {
+            // files by name, paths may be long
+            if (name instanceof File)
+                name = ((File) name).getName();
+            String section = phase + " " + name;
+            if (section.length() > MAX_SECTION_LENGTH)
+                section = section.substring(0, MAX_SECTION_LENGTH);
+            try {
+                Trace.beginSection(section);
+                start |= 1;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "begin " + section, e);
+            }
+        }
+        return start;
+    }
+
+    static void end(Phase phase, String pkgName, long start) {
+        if (start == 0)
+            return;
+        long nanos = System.nanoTime() - start;
+        // by begin, not current state, as disable() may run between
+        if ((start & 1) != 0)
+            Trace.endSection();
+        if (pkgName == null)
+            pkgName = "";
+        synchronized (sTimings) {
+            long[] timings = sTimings.get(pkgName);
+            if (timings == null) {
+                timings = new long[Phase.values().length];
+                sTimings.put(pkgName, timings);
+            }
+            timings[phase.ordinal()] += nanos;
+        }
+        Listener listener = sListener;
+        if (listener != null)
+            listener.onPhase(pkgName, phase, nanos);
+    }
+
+    static void count(Counter counter) {
+        if (sEnabled)
+            sCounters.incrementAndGet(counter.ordinal());
+    }
+
+}
@@ -2,8 +2,10 @@ package dx.android.plugin;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.WeakHashMap;
 
@@ -13,7 +15,6 @@ import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 import android.util.Log;
-import android.util.Pair;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 
@@ -25,7 +26,7 @@ public class TargetResources extends PluginResources {
     
     private Map<String, OverlayResources> mOverlayResources = 
             new TreeMap<String, OverlayResources>();
-    private List<OverlayResources> mSelectedOverlays = new ArrayList<OverlayResources>();
+    private volatile Selection mSelection = new Selection(new OverlayResources[0]);
     private Map<OverlayLayoutFactory, Integer> mTrackedFactories = 
             new WeakHashMap<OverlayLayoutFactory, Integer>();
 
@@ -37,27 +38,60 @@ public class TargetResources extends PluginResources {
         super(base);
     }
     
-    void addOverlay(File cache, OverlayResources overlay) {
-        File idmap = new File(cache, overlay.mPackageName + SUFFIX_IDMAP);
-        Log.d(TAG, "addOverlay " + idmap);
-        overlay.addTarget(this, idmap);
+    void addOverlay(OverlayResources overlay, OverlayResources.Target target) {
+        Log.d(TAG, "addOverlay " + overlay.mPackageName);
+        if (target != null)
+            overlay.addTarget(mPackageName, target);
         mOverlayResources.put(overlay.mPackageName, overlay);
     }
     
     public void selectOverlays(String... names) {
-        mSelectedOverlays.clear();
+        setSelection(makeSelection(names));
+    }
+    
+    Selection makeSelection(String... names) {
+        List<OverlayResources> overlays = new ArrayList<OverlayResources>();
         for (String n : names) {
             OverlayResources o = mOverlayResources.get(n);
-            if (o != null)
-                mSelectedOverlays.add(o);
+            if (o != null) {
+                // skipped configuration changes while not selected
+                o.ensureConfiguration();
+                overlays.add(o);
+            }
         }
+        return new Selection(overlays.toArray(new OverlayResources[overlays.size()]));
+    }
+    
+    /*
+     * Preload overlay resources that styled views will use with selection,
+     *   ids are collected on calling thread, loaded on worker thread.
+     */
+    Runnable makePreload(final Selection selection) {
+        final Set<Integer> ids = new HashSet<Integer>();
         for (OverlayLayoutFactory factory : mTrackedFactories.keySet()) {
-            factory.updateViews();
+            factory.collectIds(ids);
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (int id : ids) {
+                    long m = selection.map(mPackageName, id);
+                    if (m != NO_MAP)
+                        OverlayCache.preload(selection.overlay(m), (int) m);
+                }
+            }
+        };
+    }
+    
+    void setSelection(Selection selection) {
+        mSelection = selection;
+        for (OverlayLayoutFactory factory : mTrackedFactories.keySet()) {
+            factory.updateViews(selection);
         }
     }
     
     public boolean hasSelectedOverlays() {
-        return !mSelectedOverlays.isEmpty();
+        return mSelection.mOverlays.length > 0;
     }
 
     public void applyOverlay(Context context, boolean track) {
@@ -71,24 +105,89 @@ public class TargetResources extends PluginResources {
 
     @Override
     public void updateConfiguration(Configuration config, DisplayMetrics metrics) {
+        // called from super constructor before fields set
         if (mOverlayResources != null) {
-            for (Resources o : mOverlayResources.values()) {
+            // only selected overlays, others catch up posted changes when selected
+            for (OverlayResources o : mSelection.mOverlays) {
                 o.updateConfiguration(config, metrics);
             }
+            OverlayCache.flush();
         }
         super.updateConfiguration(config, metrics);
     }
     
-    Pair<Resources, Integer> map(int id, boolean self) {
-        for (OverlayResources o : mSelectedOverlays) {
-            int id1 = o.map(mPackageName, id);
-            if (id1 > 0) {
-                //Log.d(TAG, "map: " + o + " 0x" + Integer.toHexString(id) 
-                //        + " -> 0x" + Integer.toHexString(id1));
-                return Pair.create((Resources) o, id1);
+    static final long NO_MAP = -1L;
+    
+    /*
+     * Selected overlays, with id map compiled from them.
+     *   Map value is (overlay index << 32 | overlay id), or NO_MAP.
+     *   Ids are mapped on first use, then looked up with one probe.
+     *   Lookups take no lock, mapped ids are put into same map at once.
+     */
+    static final class Selection {
+        
+        final OverlayResources[] mOverlays;
+        // hits take no lock, misses are put as soon as mapped
+        private final OverlayIdMap mIds = new OverlayIdMap();
+        
+        Selection(OverlayResources[] overlays) {
+            mOverlays = overlays;
+        }
+        
+        long map(String pkgName, int id) {
+            if (mOverlays.length == 0)
+                return NO_MAP;
+            long m = mIds.get(id);
+            if (m != OverlayIdMap.ABSENT) {
+                PluginTrace.count(PluginTrace.Counter.OVERLAY_MAP_HIT);
+                return m;
             }
+            PluginTrace.count(PluginTrace.Counter.OVERLAY_MAP_MISS);
+            m = NO_MAP;
+            for (int i = 0; i < mOverlays.length; ++i) {
+                int id1 = mOverlays[i].map(pkgName, id);
+                if (id1 > 0) {
+                    m = ((long) i << 32) | (id1 & 0xffffffffL);
+                    break;
+                }
+            }
+            // raced misses put same value
+            mIds.put(id, m);
+            return m;
+        }
+        
+        Resources resources(long m, Resources self) {
+            return m == NO_MAP ? self : mOverlays[(int) (m >>> 32)];
+        }
+        
+        /*
+         * True if id is mapped to same overlay resource in both selections
+         */
+        boolean sameMapping(Selection other, String pkgName, int id) {
+            long m1 = map(pkgName, id);
+            long m2 = other.map(pkgName, id);
+            if (m1 == NO_MAP || m2 == NO_MAP)
+                return m1 == m2;
+            return (int) m1 == (int) m2 
+                    && mOverlays[(int) (m1 >>> 32)] == other.mOverlays[(int) (m2 >>> 32)];
         }
-        return self ? Pair.create(mBase, id) : null;
+        
+        OverlayResources overlay(long m) {
+            return mOverlays[(int) (m >>> 32)];
+        }
+        
+        static int id(long m, int id) {
+            return m == NO_MAP ? id : (int) m;
+        }
+    }
+    
+    Selection getSelection() {
+        return mSelection;
+    }
+    
+    private Selection selection() {
+        ensureConfiguration();
+        return mSelection;
     }
     
     /*
@@ -124,30 +223,42 @@ public class TargetResources extends PluginResources {
     @Override
     public Drawable getDrawable(int id) throws NotFoundException {
         //Log.d(TAG, "getDrawable: id=0x" + Integer.toHexString(id));
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getDrawable(overlay.second);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP)
+            return OverlayCache.getDrawable(s.overlay(m), (int) m, 0);
+        return mBase.getDrawable(id);
     }
 
     @Override
     public Drawable getDrawable(int id, Theme theme) throws NotFoundException {
         //Log.d(TAG, "getDrawable: id=0x" + Integer.toHexString(id));
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getDrawable(overlay.second, theme);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP && theme == null)
+            return OverlayCache.getDrawable(s.overlay(m), (int) m, 0);
+        return s.resources(m, mBase).getDrawable(Selection.id(m, id), theme);
     }
     
     @Override
     public Drawable getDrawableForDensity(int id, int density)
             throws NotFoundException {
         //Log.d(TAG, "getDrawableForDensity: id=0x" + Integer.toHexString(id));
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getDrawableForDensity(overlay.second, density);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP)
+            return OverlayCache.getDrawable(s.overlay(m), (int) m, density);
+        return mBase.getDrawableForDensity(id, density);
     }
     
     @Override
     public Drawable getDrawableForDensity(int id, int density, Theme theme) {
         //Log.d(TAG, "getDrawableForDensity: id=0x" + Integer.toHexString(id));
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getDrawableForDensity(overlay.second, density, theme);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP && theme == null)
+            return OverlayCache.getDrawable(s.overlay(m), (int) m, density);
+        return s.resources(m, mBase).getDrawableForDensity(Selection.id(m, id), density, theme);
     }
     
     /*
@@ -159,38 +270,52 @@ public class TargetResources extends PluginResources {
     @Override
     public void getValueForDensity(int id, int density, TypedValue outValue,
             boolean resolveRefs) throws NotFoundException {
-        Pair<Resources, Integer> overlay = map(id, true);
-        overlay.first.getValueForDensity(overlay.second, density, outValue, resolveRefs);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        s.resources(m, mBase).getValueForDensity(Selection.id(m, id), density, outValue, resolveRefs);
     }
     
     @Override
     public int[] getIntArray(int id) throws NotFoundException {
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getIntArray(overlay.second);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP)
+            return OverlayCache.getIntArray(s.overlay(m), (int) m);
+        return mBase.getIntArray(id);
     }
     
     @Override
     public CharSequence getText(int id) throws NotFoundException {
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getText(overlay.second);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP)
+            return OverlayCache.getText(s.overlay(m), (int) m);
+        return mBase.getText(id);
     }
     
     @Override
     public CharSequence getText(int id, CharSequence def) {
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getText(overlay.second, def);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        return s.resources(m, mBase).getText(Selection.id(m, id), def);
     }
     
     @Override
     public CharSequence[] getTextArray(int id) throws NotFoundException {
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getTextArray(overlay.second);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP)
+            return OverlayCache.getTextArray(s.overlay(m), (int) m);
+        return mBase.getTextArray(id);
     }
     
     @Override
     public String[] getStringArray(int id) throws NotFoundException {
-        Pair<Resources, Integer> overlay = map(id, true);
-        return overlay.first.getStringArray(overlay.second);
+        Selection s = selection();
+        long m = s.map(mPackageName, id);
+        if (m != NO_MAP)
+            return OverlayCache.getStringArray(s.overlay(m), (int) m);
+        return mBase.getStringArray(id);
     }
     
 }
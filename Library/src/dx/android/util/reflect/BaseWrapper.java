@@ -1,10 +1,15 @@
 package dx.android.util.reflect;
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 
@@ -58,7 +63,11 @@ public class BaseWrapper<T> {
     }
 
     private void throwException(Throwable e) {
-        if ((mFlags & FL_THROW_EXCEPTION) != 0)
+        throwException(mFlags, e);
+    }
+
+    static void throwException(int flags, Throwable e) {
+        if ((flags & FL_THROW_EXCEPTION) != 0)
             throw new RuntimeException(TAG, e);
     }
 
@@ -108,7 +117,7 @@ public class BaseWrapper<T> {
         sPrimitiveMap.put(Boolean.class, boolean.class);
         sPrimitiveMap.put(Character.class, char.class);
         sPrimitiveMap.put(Byte.class, byte.class);
-        sPrimitiveMap.put(Short.class, char.class);
+        sPrimitiveMap.put(Short.class, short.class);
         sPrimitiveMap.put(Integer.class, int.class);
         sPrimitiveMap.put(Long.class, long.class);
         sPrimitiveMap.put(Float.class, float.class);
@@ -186,33 +195,160 @@ public class BaseWrapper<T> {
             mFlags &= ~flags;
     }
 
+    /*
+     * Bind method once, invoke later without lookup
+     */
+    public <R> MethodAccessor<R> bindMethod(String name, Class<?>... params) {
+        try {
+            return new MethodAccessor<R>(getMethod(name, params), mFlags);
+        } catch (Throwable e) {
+            Log.d(TAG, "bindMethod mCls " + mCls);
+            Log.e(TAG, "bindMethod", e);
+            throwException(e);
+            return null;
+        }
+    }
+    
+    public <R> MethodAccessor<R> bindConstructor(Class<?>... params) {
+        try {
+            return new MethodAccessor<R>(getConstructor(params), mFlags);
+        } catch (Throwable e) {
+            Log.d(TAG, "bindConstructor mCls " + mCls);
+            Log.e(TAG, "bindConstructor", e);
+            throwException(e);
+            return null;
+        }
+    }
+    
+    public <R> FieldAccessor<R> bindField(String name) {
+        try {
+            return new FieldAccessor<R>(getField(name), mFlags);
+        } catch (Throwable e) {
+            Log.d(TAG, "bindField mCls " + mCls);
+            Log.e(TAG, "bindField", e);
+            throwException(e);
+            return null;
+        }
+    }
+    
+    /*
+     * Resolved members by class, shared by all wrappers.
+     *   Members refer to their class, so only classes of host loaders are
+     *   held by cache. Others, like plugin classes, are held weakly in both
+     *   key and value, a value lives while wrappers of its class hold it.
+     */
+    private static final Map<Class<?>, Map<MemberKey, AccessibleObject>> sMembers = 
+            new HashMap<Class<?>, Map<MemberKey, AccessibleObject>>();
+    private static final Map<Class<?>, WeakReference<Map<MemberKey, AccessibleObject>>> sWeakMembers = 
+            new WeakHashMap<Class<?>, WeakReference<Map<MemberKey, AccessibleObject>>>();
+    
+    // members of mCls, kept alive by this wrapper
+    private Map<MemberKey, AccessibleObject> mMembers;
+    private Class<?> mMembersCls;
+    
+    private static final Class<?>[] sNoParams = new Class<?>[0];
+    
+    // in map of its class, class is not part of key
+    private static final class MemberKey {
+        final String mName; // null for constructor
+        final Class<?>[] mParams; // null for field
+        final boolean mForce;
+        final int mHash;
+        MemberKey(String name, Class<?>[] params, boolean force) {
+            mName = name;
+            mParams = params;
+            mForce = force;
+            int h = name == null ? 0 : name.hashCode();
+            h = h * 31 + (params == null ? -1 : Arrays.hashCode(params));
+            mHash = h * 31 + (force ? 1 : 0);
+        }
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MemberKey))
+                return false;
+            MemberKey k = (MemberKey) o;
+            return mForce == k.mForce
+                    && (mName == null ? k.mName == null : mName.equals(k.mName))
+                    && (mParams == null ? k.mParams == null 
+                        : k.mParams != null && Arrays.equals(mParams, k.mParams));
+        }
+    }
+
+    private Map<MemberKey, AccessibleObject> members() {
+        Map<MemberKey, AccessibleObject> members = mMembers;
+        if (members != null && mMembersCls == mCls)
+            return members;
+        ClassLoader loader = mCls.getClassLoader();
+        boolean host = loader == null || loader == BaseWrapper.class.getClassLoader();
+        synchronized (sMembers) {
+            if (host) {
+                members = sMembers.get(mCls);
+            } else {
+                WeakReference<Map<MemberKey, AccessibleObject>> ref = sWeakMembers.get(mCls);
+                members = ref == null ? null : ref.get();
+            }
+            if (members == null) {
+                members = new ConcurrentHashMap<MemberKey, AccessibleObject>();
+                if (host) {
+                    sMembers.put(mCls, members);
+                } else {
+                    sWeakMembers.put(mCls, 
+                            new WeakReference<Map<MemberKey, AccessibleObject>>(members));
+                }
+            }
+        }
+        mMembers = members;
+        mMembersCls = mCls;
+        return members;
+    }
+    
     private Field getField(String name) throws NoSuchFieldException {
-        Field f;
-        if ((mFlags & FL_FORCE_ACCESSBIE) != 0) {
+        boolean force = (mFlags & FL_FORCE_ACCESSBIE) != 0;
+        MemberKey key = new MemberKey(name, null, force);
+        Field f = (Field) members().get(key);
+        if (f != null)
+            return f;
+        if (force) {
             f = mCls.getDeclaredField(name);
             f.setAccessible(true);
         } else {
             f = mCls.getField(name);
         }
+        members().put(key, f);
         return f;
     }
     
     private Constructor<?> getConstructor(Class<?>[] params) throws NoSuchMethodException {
-        Constructor<?> c = mCls.getConstructor(params);
-        if ((mFlags & FL_FORCE_ACCESSBIE) != 0) {
+        boolean force = (mFlags & FL_FORCE_ACCESSBIE) != 0;
+        MemberKey key = new MemberKey(null, params == null ? sNoParams : params, force);
+        Constructor<?> c = (Constructor<?>) members().get(key);
+        if (c != null)
+            return c;
+        c = mCls.getConstructor(params);
+        if (force) {
             c.setAccessible(true);
         }
+        members().put(key, c);
         return c;
     }
     
     private Method getMethod(String name, Class<?>[] params) throws NoSuchMethodException {
-        Method m;
-        if ((mFlags & FL_FORCE_ACCESSBIE) != 0) {
+        boolean force = (mFlags & FL_FORCE_ACCESSBIE) != 0;
+        MemberKey key = new MemberKey(name, params == null ? sNoParams : params, force);
+        Method m = (Method) members().get(key);
+        if (m != null)
+            return m;
+        if (force) {
             m = mCls.getDeclaredMethod(name, params);
             m.setAccessible(true);
         } else {
             m = mCls.getMethod(name, params);
         }
+        members().put(key, m);
         return m;
     }
     
@@ -0,0 +1,49 @@
+package dx.android.util.reflect;
+
+import java.lang.reflect.Field;
+
+import android.util.Log;
+
+/*
+ * Field resolved once by BaseWrapper.bindField
+ */
+public class FieldAccessor<R> {
+
+    private static final String TAG = "FieldAccessor";
+
+    private final Field mField;
+    private final int mFlags;
+
+    FieldAccessor(Field field, int flags) {
+        mField = field;
+        mFlags = flags;
+    }
+
+    /*
+     * object: ignored for static field
+     */
+    @SuppressWarnings("unchecked")
+    public R get(Object object) {
+        try {
+            return (R) mField.get(object);
+        } catch (Throwable e) {
+            Log.d(TAG, "get " + mField);
+            Log.d(TAG, "get object " + object);
+            Log.e(TAG, "get", e);
+            BaseWrapper.throwException(mFlags, e);
+            return null;
+        }
+    }
+
+    public void set(Object object, R value) {
+        try {
+            mField.set(object, value);
+        } catch (Throwable e) {
+            Log.d(TAG, "set " + mField);
+            Log.d(TAG, "set object " + object);
+            Log.e(TAG, "set", e);
+            BaseWrapper.throwException(mFlags, e);
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package dx.android.util.reflect;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import android.util.Log;
+
+/*
+ * Method or constructor resolved once by BaseWrapper.bindMethod/bindConstructor
+ */
+public class MethodAccessor<R> {
+
+    private static final String TAG = "MethodAccessor";
+
+    private final Method mMethod;
+    private final Constructor<?> mConstructor;
+    private final int mFlags;
+
+    MethodAccessor(Method method, int flags) {
+        mMethod = method;
+        mConstructor = null;
+        mFlags = flags;
+    }
+
+    MethodAccessor(Constructor<?> constructor, int flags) {
+        mMethod = null;
+        mConstructor = constructor;
+        mFlags = flags;
+    }
+
+    /*
+     * object: ignored for static method and constructor
+     */
+    @SuppressWarnings("unchecked")
+    public R invoke(Object object, Object... args) {
+        try {
+            if (mConstructor != null)
+                return (R) mConstructor.newInstance(args);
+            else
+                return (R) mMethod.invoke(object, args);
+        } catch (Throwable e) {
+            Log.d(TAG, "invoke " + (mConstructor != null ? mConstructor : mMethod));
+            Log.d(TAG, "invoke object " + object);
+            Log.e(TAG, "invoke", e);
+            BaseWrapper.throwException(mFlags, e);
+            return null;
+        }
+    }
+
+    public R newInstance(Object... args) {
+        return invoke(null, args);
+    }
+
+}
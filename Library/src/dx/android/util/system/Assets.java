@@ -1,8 +1,15 @@
 package dx.android.util.system;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import android.content.Context;
 import android.content.res.AssetManager;
@@ -13,10 +20,17 @@ public class Assets {
 
     private static final String TAG = "Assets";
 
+    // crc and size of extracted files, see extractAll
+    private static final String FILE_MANIFEST = ".manifest";
+
     public static void extract(Context context, String file, File dst, File lockFile) {
         FileLock lock = FileLock.lock(lockFile);
-        extract(context, file, dst);
-        lock.release();
+        try {
+            extract(context, file, dst);
+        } finally {
+            if (lock != null)
+                lock.release();
+        }
     }
     
     public static void extract(Context context, String src, File dst) {
@@ -24,60 +38,151 @@ public class Assets {
         extract(context.getAssets(), apkTime, src, dst);
     }
 
-    public static void extract(AssetManager manager, long apkTime, 
-            String src, File dst) {
+    public static void extract(final AssetManager manager, long apkTime, 
+            final String src, File dst) {
         if (dst.lastModified() == apkTime)
             return;
         Log.d(TAG, "extract " + src + " -> " + dst);
         try {
-            InputStream in = manager.open(src);
-            File tmp = File.createTempFile("xxx", "yyy", dst.getParentFile());
-            FileOutputStream out = new FileOutputStream(tmp);
-            byte[] buffer = new byte[2048];
-            for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
-                out.write(buffer, 0, n);
-            out.getFD().sync();
-            out.close();
-            dst.delete();
-            tmp.renameTo(dst);
+            Files.atomicWrite(dst, new Files.Content() {
+                @Override
+                public void writeTo(FileOutputStream out) throws IOException {
+                    InputStream in = manager.open(src);
+                    try {
+                        copy(in, out);
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
             dst.setLastModified(apkTime);
         } catch (Exception e) {
             Log.w(TAG, "extract", e);
         }
     }
     
+    /*
+     * Extract all files in asset dir, crc and size of entries in host apk
+     *   are compared with manifest, only changed ones are extracted, in parallel.
+     *   Each file is synced before renamed into place, manifest is written
+     *   after all and directory synced once.
+     *   Without index of host apk, all are extracted by asset manager as before.
+     */
     public static File[] extractAll(Context context, String astPath, File dstPath, 
             File lockFile) {
         File[] files = null;
         FileLock lock = FileLock.lock(lockFile);
-        long apkTime = getApkTime(context);
+        final long apkTime = getApkTime(context);
         try {
-            AssetManager manager = context.getAssets();
+            final AssetManager manager = context.getAssets();
             // AssetManager.list wan't throw FileNotFoundException
             //   but return empty array
             // Zip archive drop empty directories, so empty means none
             String[] list = manager.list(astPath);
             if (list.length == 0) {
                 Files.rmdirs(dstPath);
-            } else {
-                dstPath.mkdirs();
-                Files.cleanOthers(dstPath, list);
+                return new File[0];
             }
+            dstPath.mkdirs();
+            List<String> keeps = new ArrayList<String>(Arrays.asList(list));
+            keeps.add(FILE_MANIFEST);
+            Files.cleanOthers(dstPath, keeps);
+            final ZipIndex zip = openApk(context, apkTime);
+            final ChecksumManifest manifest = ChecksumManifest.load(
+                    new File(dstPath, FILE_MANIFEST));
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
             files = new File[list.length];
             int i = 0;
-            for (String name : list) {
-                String src = astPath + "/" + name;
-                File dst = new File(dstPath, name);
+            for (final String name : list) {
+                final String src = astPath + "/" + name;
+                final File dst = new File(dstPath, name);
                 files[i++] = dst;
-                Assets.extract(manager, apkTime, src, dst);
+                final ZipIndex.Entry entry = zip == null ? null : zip.find("assets/" + src);
+                if (entry == null) {
+                    // no index or not a file entry, extract as before
+                    manifest.remove(name);
+                    extract(manager, apkTime, src, dst);
+                    continue;
+                }
+                if (manifest.matches(name, entry.mCrc, entry.mSize, dst))
+                    continue;
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        manifest.remove(name);
+                        extract(zip, entry, dst);
+                        dst.setLastModified(apkTime);
+                        manifest.put(name, entry.mCrc, entry.mSize);
+                        return true;
+                    }
+                });
             }
+            manifest.retain(Arrays.asList(list));
+            if (!tasks.isEmpty())
+                Workers.invokeAll(tasks);
+            manifest.save();
+            Files.syncDir(dstPath);
         } catch (Exception e) {
             Log.w(TAG, "extractAll", e);
+        } finally {
+            if (lock != null)
+                lock.release();
         }
-        lock.release();
         return files;
     }
 
+    private static ZipIndex openApk(Context context, long apkTime) {
+        try {
+            return ZipIndex.open(new File(context.getPackageCodePath()), apkTime);
+        } catch (IOException e) {
+            Log.w(TAG, "openApk", e);
+            return null;
+        }
+    }
+
+    /*
+     * Stored entries are transfered from apk directly, others inflated
+     */
+    private static void extract(final ZipIndex zip, final ZipIndex.Entry entry, File dst)
+            throws IOException {
+        Log.d(TAG, "extract " + entry.mName + " -> " + dst);
+        Files.atomicWrite(dst, new Files.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws IOException {
+                if (entry.mMethod == ZipIndex.STORED) {
+                    FileInputStream in = new FileInputStream(zip.getFile());
+                    try {
+                        FileChannel inChannel = in.getChannel();
+                        FileChannel outChannel = out.getChannel();
+                        long offset = zip.getDataOffset(entry);
+                        for (long pos = 0; pos < entry.mSize; ) {
+                            long n = inChannel.transferTo(offset + pos,
+                                    entry.mSize - pos, outChannel);
+                            if (n <= 0)
+                                throw new IOException("truncated entry " + entry);
+                            pos += n;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    InputStream in = zip.open(entry);
+                    try {
+                        copy(in, out);
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private static void copy(InputStream in, FileOutputStream out) throws IOException {
+        byte[] buffer = new byte[65536];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+            out.write(buffer, 0, n);
+    }
+
     private static long getApkTime(Context context) {
         String apkPath = context.getPackageCodePath();
         long apkTime = new File(apkPath).lastModified();
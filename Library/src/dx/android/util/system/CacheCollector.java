@@ -0,0 +1,141 @@
+package dx.android.util.system;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.Process;
+import android.util.Log;
+
+/*
+ * Deferred cleaning of cache dirs.
+ *   Cleans are recorded while starting up, and done on a background thread
+ *   of low priority after start(). Later record of same dir replaces earlier one.
+ *   Each dir is cleaned under its lock file, entries modified after record
+ *   are kept, they may be created by other process meanwhile.
+ */
+public class CacheCollector {
+
+    private static final String TAG = "CacheCollector";
+
+    private static class Task {
+        final File mDir;
+        final FilenameFilter mFilter;
+        final File mLockFile;
+        // in seconds, some file systems have coarse time
+        final long mTime;
+
+        Task(File dir, FilenameFilter filter, File lockFile) {
+            mDir = dir;
+            mFilter = filter;
+            mLockFile = lockFile;
+            mTime = System.currentTimeMillis() / 1000 * 1000;
+        }
+
+        void run() {
+            FileLock lock = null;
+            if (mLockFile != null) {
+                lock = FileLock.lock(mLockFile);
+                // not clean unlocked, recorded again on next start
+                if (lock == null) {
+                    Log.w(TAG, "collect: lock failed, skip " + mDir);
+                    return;
+                }
+            }
+            try {
+                File[] files = mDir.listFiles(mFilter);
+                if (files == null)
+                    return;
+                for (File f : files) {
+                    if (f.lastModified() >= mTime) {
+                        Log.d(TAG, "collect: modified, keep " + f);
+                        continue;
+                    }
+                    Log.d(TAG, "collect " + f);
+                    Files.rmdirs(f);
+                }
+            } finally {
+                if (lock != null)
+                    lock.release();
+            }
+        }
+    }
+
+    private final Map<File, Task> mTasks = new LinkedHashMap<File, Task>();
+    private boolean mStarted;
+    private boolean mRunning;
+
+    /*
+     * Record clean of files in dir accepted by filter
+     *   lockFile: lock of dir, may be null
+     */
+    public synchronized void clean(File dir, FilenameFilter filter, File lockFile) {
+        mTasks.put(dir, new Task(dir, filter, lockFile));
+        if (mStarted)
+            schedule();
+    }
+
+    /*
+     * Record clean of files in dir not in keep
+     */
+    public void cleanOthers(File dir, Collection<String> keep, File lockFile) {
+        // copy, keep may change after record
+        final Set<String> keepSet = new HashSet<String>(keep);
+        clean(dir, new FilenameFilter() {
+            @Override
+            public boolean accept(File arg0, String arg1) {
+                return !keepSet.contains(arg1);
+            }
+        }, lockFile);
+    }
+
+    /*
+     * Start collecting recorded and later recorded cleans
+     */
+    public synchronized void start() {
+        mStarted = true;
+        if (!mTasks.isEmpty())
+            schedule();
+    }
+
+    private void schedule() {
+        if (mRunning)
+            return;
+        mRunning = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                collect();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void collect() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Task task;
+            synchronized (this) {
+                Iterator<Task> it = mTasks.values().iterator();
+                if (!it.hasNext()) {
+                    mRunning = false;
+                    return;
+                }
+                task = it.next();
+                it.remove();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "collect " + task.mDir, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package dx.android.util.system;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/*
+ * Crc and size of files derived from sources, one line per file.
+ *   Crc is of zip entry for extracted files, or other non-negative
+ *   version stamp of sources. Used to skip deriving files again.
+ */
+public class ChecksumManifest {
+
+    private static final String TAG = "ChecksumManifest";
+
+    private static class Record {
+        long mCrc;
+        long mSize;
+    }
+
+    private File mFile;
+    private Map<String, Record> mRecords = new TreeMap<String, Record>();
+    private boolean mDirty;
+
+    private ChecksumManifest(File file) {
+        mFile = file;
+    }
+
+    public static ChecksumManifest load(File file) {
+        ChecksumManifest manifest = new ChecksumManifest(file);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // name may contains space, crc and size not
+                int i2 = line.lastIndexOf(' ');
+                int i1 = line.lastIndexOf(' ', i2 - 1);
+                if (i1 <= 0)
+                    continue;
+                Record r = new Record();
+                r.mCrc = Long.parseLong(line.substring(i1 + 1, i2), 16);
+                r.mSize = Long.parseLong(line.substring(i2 + 1));
+                manifest.mRecords.put(line.substring(0, i1), r);
+            }
+        } catch (FileNotFoundException e) {
+        } catch (Exception e) {
+            Log.w(TAG, "load", e);
+            manifest.mRecords.clear();
+        } finally {
+            try {
+                if (reader != null)
+                    reader.close();
+            } catch (IOException e) {
+            }
+        }
+        return manifest;
+    }
+
+    /*
+     * True if dst is extracted from entry with same crc and size,
+     *   size of dst is also checked, to catch file changed by others.
+     *   Data is not checked, extractors must sync dst before put.
+     */
+    public synchronized boolean matches(String name, long crc, long size, File dst) {
+        Record r = mRecords.get(name);
+        return r != null && r.mCrc == crc && r.mSize == size
+                && dst.length() == size;
+    }
+
+    public synchronized void put(String name, long crc, long size) {
+        Record r = new Record();
+        r.mCrc = crc;
+        r.mSize = size;
+        mRecords.put(name, r);
+        mDirty = true;
+    }
+
+    public synchronized void remove(String name) {
+        if (mRecords.remove(name) != null)
+            mDirty = true;
+    }
+
+    // drop records of files not in names
+    public synchronized void retain(Collection<String> names) {
+        Set<String> keep = new HashSet<String>(names);
+        if (mRecords.keySet().retainAll(keep))
+            mDirty = true;
+    }
+
+    /*
+     * Write to temp file and rename, directory is not synced here,
+     *   caller sync it once with other changed files
+     */
+    public synchronized void save() {
+        if (!mDirty)
+            return;
+        try {
+            Files.atomicWrite(mFile, new Files.Content() {
+                @Override
+                public void writeTo(FileOutputStream out) throws IOException {
+                    Writer writer = new OutputStreamWriter(out, "UTF-8");
+                    for (Map.Entry<String, Record> e : mRecords.entrySet()) {
+                        writer.write(e.getKey() + " " + Long.toHexString(e.getValue().mCrc)
+                                + " " + e.getValue().mSize + "\n");
+                    }
+                    writer.flush();
+                }
+            });
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "save", e);
+        }
+    }
+
+}
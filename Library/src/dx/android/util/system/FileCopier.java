@@ -0,0 +1,188 @@
+package dx.android.util.system;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/*
+ * Resumable copy of large files from slow or removable volumes.
+ *   Data goes to <dst>.part in chunks, after each chunk is synced, copied
+ *   length is saved in journal <dst>.part.journal with identity of src.
+ *   An interrupted copy continues from journal if src is not changed.
+ *   When done, part file is renamed to dst, so dst is never partial.
+ *   Directory of dst is not synced, caller sync it once after all copies.
+ */
+public class FileCopier {
+
+    private static final String TAG = "FileCopier";
+
+    public static final String SUFFIX_PART = ".part";
+    public static final String SUFFIX_JOURNAL = ".part.journal";
+
+    private static final int MAGIC = 0x46435059; // FCPY
+    private static final long CHUNK = 4 * 1024 * 1024;
+    // bytes at head and tail hashed for fast compare
+    private static final int HASH_SPAN = 64 * 1024;
+
+    /*
+     * Fast content hash: crc of size, head and tail of file
+     */
+    public static long fastHash(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < 8; ++i)
+                crc.update((int) (size >>> (i * 8)));
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_SPAN);
+            hashRange(channel, 0, Math.min(size, HASH_SPAN), buffer, crc);
+            if (size > HASH_SPAN) {
+                long pos = Math.max(HASH_SPAN, size - HASH_SPAN);
+                hashRange(channel, pos, size - pos, buffer, crc);
+            }
+            return crc.getValue();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * Same size and fast hash
+     */
+    public static boolean isSame(File src, File dst) {
+        if (!dst.isFile() || dst.length() != src.length())
+            return false;
+        try {
+            return fastHash(src) == fastHash(dst);
+        } catch (IOException e) {
+            Log.w(TAG, "isSame", e);
+            return false;
+        }
+    }
+
+    /*
+     * Copy src to dst, resume from last interrupted copy if any.
+     *   Return false if copy failed, dst is not touched then.
+     */
+    public static boolean copy(File src, File dst) {
+        File part = new File(dst.getPath() + SUFFIX_PART);
+        File journal = new File(dst.getPath() + SUFFIX_JOURNAL);
+        FileInputStream in = null;
+        RandomAccessFile out = null;
+        try {
+            long size = src.length();
+            long time = src.lastModified();
+            long hash = fastHash(src);
+            long pos = readJournal(journal, size, time, hash);
+            if (pos > part.length())
+                pos = 0;
+            if (pos > 0)
+                Log.d(TAG, "copy: resume " + dst + " at " + pos + "/" + size);
+            in = new FileInputStream(src);
+            out = new RandomAccessFile(part, "rw");
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(pos);
+            while (pos < size) {
+                long n = inChannel.transferTo(pos, Math.min(CHUNK, size - pos),
+                        outChannel.position(pos));
+                if (n <= 0)
+                    throw new IOException("transfer stalled at " + pos);
+                pos += n;
+                outChannel.force(false);
+                writeJournal(journal, size, time, hash, pos);
+            }
+            out.close();
+            out = null;
+            if (src.length() != size || src.lastModified() != time)
+                throw new IOException("source changed while copying");
+            if (!part.renameTo(dst))
+                throw new IOException("rename failed " + part);
+            dst.setLastModified(time);
+            journal.delete();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "copy " + src, e);
+            return false;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /*
+     * Remove part and journal of dst, when copy is not going to resume
+     */
+    public static void discard(File dst) {
+        new File(dst.getPath() + SUFFIX_PART).delete();
+        new File(dst.getPath() + SUFFIX_JOURNAL).delete();
+    }
+
+    private static void hashRange(FileChannel channel, long pos, long length,
+            ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.clear();
+        buffer.limit((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0)
+                throw new IOException("truncated");
+        }
+        crc.update(buffer.array(), 0, (int) length);
+    }
+
+    // copied length, 0 if no journal or src changed
+    private static long readJournal(File journal, long size, long time, long hash) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(journal));
+            if (in.readInt() != MAGIC || in.readLong() != size
+                    || in.readLong() != time || in.readLong() != hash)
+                return 0;
+            return in.readLong();
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.w(TAG, "readJournal", e);
+            return 0;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void writeJournal(File journal, long size, long time, long hash,
+            long pos) throws IOException {
+        FileOutputStream fos = new FileOutputStream(journal);
+        DataOutputStream out = new DataOutputStream(fos);
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(size);
+            out.writeLong(time);
+            out.writeLong(hash);
+            out.writeLong(pos);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+}
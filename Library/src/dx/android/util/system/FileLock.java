@@ -3,13 +3,26 @@ package dx.android.util.system;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.util.Log;
 
+/*
+ * Lock between processes, also between threads of this process.
+ *   File locks are held by process, so threads are serialized by
+ *   a lock of same path first. Nested lock on same thread is granted.
+ */
 public class FileLock {
 
     private static final String TAG = "FileLock";
 
+    // by absolute path, not removed, lock files are few
+    private static final Map<String, ReentrantLock> sThreadLocks =
+            new HashMap<String, ReentrantLock>();
+
     public static FileLock lock(File lockFile) {
         FileLock fileLock = new FileLock(lockFile, false);
         return fileLock.hasLock() ? fileLock : null;
@@ -20,9 +33,21 @@ public class FileLock {
         return fileLock.hasLock() ? fileLock : null;
     }
 
+    private ReentrantLock mThreadLock;
     private FileOutputStream mOut;
 
     private FileLock(File file, boolean tryLock) {
+        ReentrantLock threadLock = threadLock(file);
+        if (tryLock) {
+            if (!threadLock.tryLock())
+                return;
+        } else {
+            threadLock.lock();
+        }
+        mThreadLock = threadLock;
+        // nested, file already locked by this thread
+        if (threadLock.getHoldCount() > 1)
+            return;
         java.nio.channels.FileLock lock = null;
         try {
             mOut = new FileOutputStream(file, true);
@@ -32,13 +57,28 @@ public class FileLock {
                 lock = mOut.getChannel().lock();
         } catch (IOException e) {
             Log.w(TAG, "<init>", e);
+        } catch (OverlappingFileLockException e) {
+            // same file locked through other path
+            Log.w(TAG, "<init>", e);
         }
         if (lock == null)
             release();
     }
     
+    private static ReentrantLock threadLock(File file) {
+        String path = file.getAbsolutePath();
+        synchronized (sThreadLocks) {
+            ReentrantLock lock = sThreadLocks.get(path);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                sThreadLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+    
     private boolean hasLock() {
-        return mOut != null;
+        return mThreadLock != null;
     }
     
     public void release() {
@@ -49,6 +89,9 @@ public class FileLock {
             Log.w(TAG, "release", e);
         }
         mOut = null;
+        if (mThreadLock != null)
+            mThreadLock.unlock();
+        mThreadLock = null;
     }
 
 }
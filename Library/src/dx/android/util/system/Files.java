@@ -1,25 +1,42 @@
 package dx.android.util.system;
 
 import android.content.Context;
+import android.os.Build;
 import android.os.Environment;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class Files {
 
     private static final String TAG = "Files";
 
+    private static final Pattern MATCH_ALL = Pattern.compile(".*");
+    // numbered or named, may also match escaped backslash, then just not merged
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
     public static void copyFile(File src, File dst) throws IOException {
         FileInputStream inStream = new FileInputStream(src);
         FileOutputStream outStream = new FileOutputStream(dst);
@@ -32,6 +49,56 @@ public class Files {
         dst.setLastModified(src.lastModified());
     }
     
+    public interface Content {
+        /*
+         * Write content to out, buffered wrappers must be flushed before return
+         */
+        void writeTo(FileOutputStream out) throws IOException;
+    }
+
+    /*
+     * Write file through <file>.tmp, which is synced and then renamed to file.
+     *   On failure tmp is removed and file is not touched.
+     *   Directory is not synced, and same tmp is used by all writers of file,
+     *   callers writing same file from many processes should hold a lock.
+     */
+    public static void atomicWrite(File file, Content content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        boolean done = false;
+        try {
+            content.writeTo(out);
+            out.getFD().sync();
+            out.close();
+            if (!tmp.renameTo(file))
+                throw new IOException("rename failed " + tmp);
+            done = true;
+        } finally {
+            out.close();
+            if (!done)
+                tmp.delete();
+        }
+    }
+
+    /*
+     * fsync directory, make renames and creates in it durable.
+     *   Need android.system.Os, so not work before LOLLIPOP
+     */
+    public static void syncDir(File dir) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+        try {
+            FileDescriptor fd = Os.open(dir.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "syncDir", e);
+        }
+    }
+    
     public static boolean rmdirs(File dir) {
         if (dir.isDirectory()) {
             File[] files = dir.listFiles();
@@ -48,51 +115,153 @@ public class Files {
         return dir.delete();
     }
     
+    public interface Visitor {
+        /*
+         * Called for each matched file, on worker threads in parallel walk,
+         *   maybe concurrently. Return false to stop walking.
+         */
+        boolean onFile(File file);
+    }
+
     /*
      * dir: root directory, on Android, it's always absolute
      */
     public static List<File> walk(File dir, List<String> pattens) {
+        if (!dir.exists())
+            return null;
+        final List<File> files = new ArrayList<File>();
+        walk(dir, pattens, false, new Visitor() {
+            @Override
+            public boolean onFile(File file) {
+                files.add(file);
+                return true;
+            }
+        });
+        return files;
+    }
+
+    /*
+     * Walk dir breadth first, hidden entries (for example .git) are skipped.
+     *   parallel: list dirs of same depth on worker threads
+     *   If dir is a file, it is visited without matching.
+     */
+    public static void walk(File dir, List<String> pattens, boolean parallel,
+            final Visitor visitor) {
         if (!dir.isDirectory()) {
             if (dir.isFile())
-                return Arrays.asList(new File[] { dir });
-            return null;
+                visitor.onFile(dir);
+            return;
         }
+        final Pattern[] patterns = compile(pattens);
+        if (patterns.length == 0)
+            return;
         Log.d(TAG, "walk " + dir + " with pattens " + pattens);
-        List<File> dirs = new ArrayList<File>();
-        List<File> files = new ArrayList<File>();
-        Pattern[] patterns1 = new Pattern[pattens.size()];
-        for (int i = 0; i < patterns1.length; ++i) {
+        if (!parallel) {
+            ArrayDeque<File> dirs = new ArrayDeque<File>();
+            dirs.add(dir);
+            while (!dirs.isEmpty()) {
+                if (!walkDir(dirs.poll(), patterns, visitor, dirs))
+                    return;
+            }
+            return;
+        }
+        final AtomicBoolean stopped = new AtomicBoolean();
+        List<File> level = Collections.singletonList(dir);
+        while (!level.isEmpty() && !stopped.get()) {
+            final List<File> dirs = level;
+            int count = Math.min(dirs.size(), Workers.getPoolSize() + 1);
+            List<Callable<List<File>>> tasks = new ArrayList<Callable<List<File>>>(count);
+            for (int i = 0; i < count; ++i) {
+                final int first = i;
+                final int step = count;
+                tasks.add(new Callable<List<File>>() {
+                    @Override
+                    public List<File> call() {
+                        List<File> subDirs = new ArrayList<File>();
+                        for (int j = first; j < dirs.size() && !stopped.get(); j += step) {
+                            if (!walkDir(dirs.get(j), patterns, visitor, subDirs))
+                                stopped.set(true);
+                        }
+                        return subDirs;
+                    }
+                });
+            }
+            level = new ArrayList<File>();
+            for (List<File> subDirs : Workers.invokeAll(tasks)) {
+                if (subDirs != null)
+                    level.addAll(subDirs);
+            }
+        }
+    }
+
+    /*
+     * Compile valid pattens into one alternation, empty if none is valid,
+     *   ".*" alone gives MATCH_ALL. Pattens with back references are
+     *   compiled alone, as group numbers shift in alternation. If the
+     *   alternation fails to compile (\Q or comments running to the end
+     *   of one patten), all are matched one by one.
+     */
+    private static Pattern[] compile(List<String> pattens) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<Pattern> merges = new ArrayList<Pattern>();
+        StringBuilder sb = new StringBuilder();
+        for (String p : pattens) {
+            Pattern pattern;
             try {
-                patterns1[i] = Pattern.compile(pattens.get(i));
+                pattern = Pattern.compile(p);
             } catch (Exception e) {
                 Log.w(TAG, "walk", e);
-                patterns1[i] = null;
+                continue;
+            }
+            if (p.equals(".*"))
+                return new Pattern[] { MATCH_ALL };
+            if (BACK_REFERENCE.matcher(p).find()) {
+                patterns.add(pattern);
+                continue;
             }
+            merges.add(pattern);
+            if (sb.length() > 0)
+                sb.append('|');
+            sb.append("(?:").append(p).append(')');
         }
-        dirs.add(dir);
-        while (!dirs.isEmpty()) {
-            File d = dirs.remove(0);
-            Log.d(TAG, "walk search " + d);
-            File[] list = d.listFiles();
-            if (list == null)
+        if (merges.size() == 1) {
+            patterns.add(0, merges.get(0));
+        } else if (merges.size() > 1) {
+            try {
+                patterns.add(0, Pattern.compile(sb.toString()));
+            } catch (PatternSyntaxException e) {
+                Log.w(TAG, "walk: not merged " + pattens, e);
+                patterns.addAll(0, merges);
+            }
+        }
+        return patterns.toArray(new Pattern[patterns.size()]);
+    }
+
+    private static boolean walkDir(File dir, Pattern[] patterns, Visitor visitor,
+            Collection<File> subDirs) {
+        String[] names = dir.list();
+        if (names == null)
+            return true;
+        for (String name : names) {
+            if (name.startsWith(".")) // for example .git
                 continue;
-            for (File f : list) {
-                if (f.getName().startsWith(".")) // for example .git
-                    continue;
-                if (f.isDirectory()) {
-                    dirs.add(f);
-                } else {
-                    for (Pattern p : patterns1) {
-                        if (p != null && p.matcher(f.getName()).matches()) {
-                            Log.d(TAG, "walk match " + p.toString() + " -> " + f);
-                            files.add(f);
-                            break;
-                        }
-                    }
-                }
+            File f = new File(dir, name);
+            if (f.isDirectory()) {
+                subDirs.add(f);
+            } else if (matches(patterns, name)) {
+                if (!visitor.onFile(f))
+                    return false;
             }
         }
-        return files;
+        return true;
+    }
+
+    private static boolean matches(Pattern[] patterns, String name) {
+        for (Pattern p : patterns) {
+            if (p == MATCH_ALL || p.matcher(name).matches())
+                return true;
+        }
+        return false;
     }
 
     public static List<File> walk(File dir, String pattern) {
@@ -138,11 +307,12 @@ public class Files {
         cleanOthers(dir, Arrays.asList(keep));
     }
     
-    public static void cleanOthers(File dir, final List<String> keep) {
+    public static void cleanOthers(File dir, Collection<String> keep) {
+        final Set<String> keepSet = new HashSet<String>(keep);
         clean(dir, new FilenameFilter() {
             @Override
             public boolean accept(File arg0, String arg1) {
-                return !keep.contains(arg1);
+                return !keepSet.contains(arg1);
             }
         });
     }
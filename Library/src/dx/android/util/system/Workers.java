@@ -0,0 +1,84 @@
+package dx.android.util.system;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+public class Workers {
+
+    private static final String TAG = "Workers";
+
+    private static final int sPoolSize =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ThreadPoolExecutor sPool;
+
+    public static int getPoolSize() {
+        return sPoolSize;
+    }
+
+    public synchronized static ExecutorService pool() {
+        if (sPool == null) {
+            sPool = new ThreadPoolExecutor(sPoolSize, sPoolSize,
+                    10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mIndex = new AtomicInteger();
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, TAG + "-" + mIndex.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            sPool.allowCoreThreadTimeOut(true);
+        }
+        return sPool;
+    }
+
+    /*
+     * Run tasks on the shared pool and return results in task order,
+     *   null for tasks that throw.
+     * The calling thread also runs tasks not yet picked by the pool,
+     *   so it is safe to call from inside a pool task.
+     */
+    public static <T> List<T> invokeAll(Collection<? extends Callable<T>> tasks) {
+        List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+        for (Callable<T> task : tasks)
+            futures.add(new FutureTask<T>(task));
+        if (futures.size() > 1) {
+            ExecutorService pool = pool();
+            for (int i = 1; i < futures.size(); ++i)
+                pool.execute(futures.get(i));
+        }
+        List<T> results = new ArrayList<T>(futures.size());
+        for (FutureTask<T> future : futures) {
+            // no-op if already started by pool
+            future.run();
+        }
+        for (FutureTask<T> future : futures) {
+            T result = null;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "invokeAll", e.getCause());
+            } catch (InterruptedException e) {
+                Log.w(TAG, "invokeAll", e);
+                Thread.currentThread().interrupt();
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,321 @@
+package dx.android.util.system;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/*
+ * Read only zip central directory, memory mapped.
+ *   Entries are looked up by name prefix without creating ZipEntry for every file,
+ *   instances are cached per file and time, so one apk is only parsed once.
+ *   Zip64 is not supported, which apks never use.
+ */
+public class ZipIndex {
+
+    private static final String TAG = "ZipIndex";
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+
+    private static final int MAX_CACHE = 16;
+
+    private static final Map<String, ZipIndex> sCache =
+            new LinkedHashMap<String, ZipIndex>(MAX_CACHE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+            return size() > MAX_CACHE;
+        }
+    };
+
+    public static class Entry {
+        public final String mName;
+        public final int mMethod;
+        public final long mCrc;
+        public final long mSize;
+        public final long mCompressedSize;
+        final long mHeaderOffset;
+        Entry(String name, int method, long crc, long size, long csize, long offset) {
+            mName = name;
+            mMethod = method;
+            mCrc = crc;
+            mSize = size;
+            mCompressedSize = csize;
+            mHeaderOffset = offset;
+        }
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private final File mFile;
+    private final long mTime;
+    private final long mLength;
+    private final ByteBuffer mDirectory;
+    private final int[] mOffsets;
+
+    /*
+     * time: modify time of file, or other version stamp, cache is dropped when changed
+     */
+    public static ZipIndex open(File file, long time) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized (sCache) {
+            ZipIndex zip = sCache.get(path);
+            if (zip != null && zip.mTime == time && zip.mLength == file.length())
+                return zip;
+        }
+        ZipIndex zip = new ZipIndex(file, time);
+        synchronized (sCache) {
+            sCache.put(path, zip);
+        }
+        return zip;
+    }
+
+    private ZipIndex(File file, long time) throws IOException {
+        mFile = file;
+        mTime = time;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mLength = raf.length();
+            FileChannel channel = raf.getChannel();
+            // end of central directory, may followed by comment
+            int tail = (int) Math.min(mLength, EOCD_SIZE + 0xffff);
+            ByteBuffer end = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, end, mLength - tail);
+            int eocd = -1;
+            for (int i = tail - EOCD_SIZE; i >= 0; --i) {
+                if (end.getInt(i) == EOCD_SIG) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0)
+                throw new IOException("not a zip file " + file);
+            int count = end.getShort(eocd + 10) & 0xffff;
+            long size = end.getInt(eocd + 12) & 0xffffffffL;
+            long offset = end.getInt(eocd + 16) & 0xffffffffL;
+            if (offset + size > mLength)
+                throw new IOException("bad central directory " + file);
+            mDirectory = channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mOffsets = new int[count];
+            int pos = 0;
+            for (int i = 0; i < count; ++i) {
+                if (mDirectory.getInt(pos) != CEN_SIG)
+                    throw new IOException("bad central directory entry " + file);
+                mOffsets[i] = pos;
+                pos += CEN_SIZE + (mDirectory.getShort(pos + 28) & 0xffff)
+                        + (mDirectory.getShort(pos + 30) & 0xffff)
+                        + (mDirectory.getShort(pos + 32) & 0xffff);
+            }
+        } finally {
+            raf.close();
+        }
+        Log.d(TAG, "<init> " + file + " entries " + mOffsets.length);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int size() {
+        return mOffsets.length;
+    }
+
+    /*
+     * Entries with name starts with prefix, in central directory order
+     */
+    public List<Entry> list(String prefix) {
+        byte[] p = utf8(prefix);
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int off : mOffsets) {
+            if (matches(off, p, false))
+                entries.add(entry(off));
+        }
+        return entries;
+    }
+
+    public Entry find(String name) {
+        byte[] p = utf8(name);
+        for (int off : mOffsets) {
+            if (matches(off, p, true))
+                return entry(off);
+        }
+        return null;
+    }
+
+    /*
+     * Offset of entry data in file, for STORED entries that can be read directly
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            return getDataOffset(raf.getChannel(), entry);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public InputStream open(Entry entry) throws IOException {
+        final FileInputStream fis = new FileInputStream(mFile);
+        try {
+            FileChannel channel = fis.getChannel();
+            channel.position(getDataOffset(channel, entry));
+            InputStream in = new BoundedInputStream(fis, entry.mCompressedSize);
+            if (entry.mMethod == STORED)
+                return in;
+            if (entry.mMethod == DEFLATED)
+                return new EntryInflaterInputStream(in, entry.mSize);
+            throw new IOException("unsupported method " + entry.mMethod + " " + entry);
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    private long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer loc = ByteBuffer.allocate(LOC_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, loc, entry.mHeaderOffset);
+        return entry.mHeaderOffset + LOC_SIZE
+                + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+    }
+
+    private boolean matches(int off, byte[] prefix, boolean exact) {
+        int len = mDirectory.getShort(off + 28) & 0xffff;
+        if (len < prefix.length || (exact && len != prefix.length))
+            return false;
+        for (int i = 0; i < prefix.length; ++i) {
+            if (mDirectory.get(off + CEN_SIZE + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private Entry entry(int off) {
+        int len = mDirectory.getShort(off + 28) & 0xffff;
+        byte[] name = new byte[len];
+        for (int i = 0; i < len; ++i)
+            name[i] = mDirectory.get(off + CEN_SIZE + i);
+        String n;
+        try {
+            n = new String(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return new Entry(n,
+                mDirectory.getShort(off + 10) & 0xffff,
+                mDirectory.getInt(off + 16) & 0xffffffffL,
+                mDirectory.getInt(off + 24) & 0xffffffffL,
+                mDirectory.getInt(off + 20) & 0xffffffffL,
+                mDirectory.getInt(off + 42) & 0xffffffffL);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + buf.position());
+            if (n < 0)
+                throw new EOFException();
+        }
+    }
+
+    private static class BoundedInputStream extends FilterInputStream {
+        private long mRemain;
+        BoundedInputStream(InputStream in, long size) {
+            super(in);
+            mRemain = size;
+        }
+        @Override
+        public int read() throws IOException {
+            if (mRemain <= 0)
+                return -1;
+            int b = super.read();
+            if (b >= 0)
+                --mRemain;
+            return b;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemain <= 0)
+                return -1;
+            int n = super.read(b, off, (int) Math.min(len, mRemain));
+            if (n > 0)
+                mRemain -= n;
+            return n;
+        }
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mRemain, super.available());
+        }
+    }
+
+    // like ZipFile, feed a dummy byte at end for nowrap inflater
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean mEof;
+        private long mRemain;
+        EntryInflaterInputStream(InputStream in, long size) {
+            super(in, new Inflater(true), 8192);
+            mRemain = size;
+        }
+        @Override
+        protected void fill() throws IOException {
+            if (mEof)
+                throw new EOFException("unexpected end of zip entry");
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                mEof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                mRemain -= n;
+            return n;
+        }
+        @Override
+        public int available() throws IOException {
+            return mRemain > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(0, mRemain);
+        }
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+}